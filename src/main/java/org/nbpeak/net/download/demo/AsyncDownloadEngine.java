@@ -0,0 +1,561 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.nbpeak.net.download.Utils;
+import org.nbpeak.net.download.demo.pojo.DownloadInfo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 异步下载引擎：请求用Call.enqueue()发出，连接和等待响应头由OkHttp调度器的少量线程完成；
+ * 收到响应头后分段交给读线程，读线程每次只读一个分片（64KB）写到文件，然后把分段放回队列，轮到下一个分段。
+ * 这样几百个下载、几千个分段也只用固定的几个线程，每个分段和每个下载的结束都通过CompletableFuture通知。
+ * OkHttp调度器在onResponse返回后就不再计数，而分段的响应体要读完才关闭，所以同时打开的连接数由引擎自己控制：
+ * 分段先排队，正在下载的分段数没到上限才发出请求，分段结束后再发下一个。
+ * OkHttp 3的响应体只有阻塞读，某个连接没数据时读线程会在这个分段上等一会儿，所以分片不宜太大，读线程数要比CPU核数多一些。
+ */
+@Slf4j
+public class AsyncDownloadEngine implements Closeable {
+    private static final int SLICE_SIZE = 64 * 1024;
+    private static final int MAX_RETRIES = 3;
+    public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final OkHttpClient client;
+    // OkHttp调度器的线程，只负责建立连接、发请求、等响应头
+    private final ExecutorService callExecutor;
+    // 读线程，轮流读各个分段
+    private final ExecutorService readers;
+    private final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(SLICE_SIZE));
+    private long segmentSize = DEFAULT_SEGMENT_SIZE;
+    // 同时下载的分段数上限（每个分段占一个连接），总的和每个服务器的
+    private final int maxRequests;
+    private final int maxRequestsPerHost;
+    // 等待发出请求的分段，下面几个字段都用引擎的锁保护
+    private final Deque<SegmentReader> waiting = new ArrayDeque<>();
+    private int running;
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+
+    /**
+     * 一个异步下载
+     */
+    public class AsyncDownload {
+        private final String url;
+        private final String saveTo;
+        private final CompletableFuture<DownloadInfo> future = new CompletableFuture<>();
+        private final CompletableFuture<List<CompletableFuture<Long>>> segments = new CompletableFuture<>();
+        private final AtomicLong downloaded = new AtomicLong();
+        // 这个下载的分段统计，同时累加到所有下载的汇总里
+        private final SegmentStats segmentStats = new SegmentStats(HttpClientFactory.getMetrics().getSegmentStats());
+        private volatile DownloadInfo downloadInfo;
+        private volatile boolean cancelled;
+        private String eTag;
+        private String lastModified;
+        private PositionalWriter writer;
+
+        private AsyncDownload(String url, String saveTo) {
+            this.url = url;
+            this.saveTo = saveTo;
+        }
+
+        /**
+         * 收到HEAD响应后，按分段大小切分文件，分段排队，有连接名额时发出请求
+         */
+        private void start(Response response) throws IOException {
+            long length = -1;
+            boolean chunked = "chunked".equals(response.header("Transfer-Encoding"));
+            if (!chunked) {
+                length = NumberUtils.toLong(response.header("Content-Length"), length);
+            }
+            boolean supportBreakpoint = "bytes".equalsIgnoreCase(response.header("Accept-Ranges"));
+            eTag = response.header("ETag");
+            lastModified = response.header("Last-Modified");
+            downloadInfo = new DownloadInfo(new URL(url), length, getFileName(response));
+
+            Path dirPath = Paths.get(saveTo);
+            if (!Files.exists(dirPath)) {
+                Files.createDirectories(dirPath);
+            }
+            downloadInfo.setLocalPath(Paths.get(saveTo, downloadInfo.getFileName()));
+            downloadInfo.setStatus(DownloadInfo.Status.RUNNING);
+            writer = new PositionalWriter(downloadInfo.getLocalPath());
+            writer.preallocate(length);
+
+            List<SegmentReader> readerList = new ArrayList<>();
+            if (supportBreakpoint && length > 0) {
+                for (long startPos = 0; startPos < length; startPos += segmentSize) {
+                    readerList.add(new SegmentReader(this, startPos, Math.min(startPos + segmentSize, length) - 1));
+                }
+            } else {
+                // 不支持断点续传或者不知道文件大小，只能一个请求读到底
+                readerList.add(new SegmentReader(this, 0, -1));
+            }
+            log.info("开始异步下载：" + downloadInfo.getFileName() + "，大小：" + Utils.byteToUnit(length) + "，分段数：" + readerList.size());
+
+            List<CompletableFuture<Long>> segmentFutures = new ArrayList<>(readerList.size());
+            for (SegmentReader reader : readerList) {
+                segmentFutures.add(reader.future);
+            }
+            CompletableFuture.allOf(segmentFutures.toArray(new CompletableFuture[0])).whenComplete((v, e) -> finish(e));
+            segments.complete(segmentFutures);
+            schedule(readerList);
+        }
+
+        private void finish(Throwable e) {
+            try {
+                writer.close();
+            } catch (IOException closeError) {
+                e = e == null ? closeError : e;
+            }
+            downloadInfo.setSaveSize(downloaded.get());
+            if (e == null) {
+                downloadInfo.setStatus(DownloadInfo.Status.FINISHED);
+                log.info("异步下载结束：" + downloadInfo.getLocalPath());
+                future.complete(downloadInfo);
+            } else {
+                // 取消的下载是停止，其他错误是失败，allOf给的错误包了一层CompletionException
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                downloadInfo.setStatus(cause instanceof CancellationException ? DownloadInfo.Status.STOPPED : DownloadInfo.Status.FAILED);
+                log.error("异步下载失败：" + url, e);
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void fail(Throwable e) {
+            if (writer != null) {
+                // 打开文件之后出错，分段都还没开始，直接关掉
+                try {
+                    writer.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+            segments.completeExceptionally(e);
+            future.completeExceptionally(e);
+        }
+
+        /**
+         * 取消下载，没下完的分段都以CancellationException结束
+         */
+        public void cancel() {
+            cancelled = true;
+            // 还在排队的分段马上结束
+            dispatchWaiting();
+        }
+
+        /**
+         * 下载结束时完成，出错或取消时异常结束
+         *
+         * @return
+         */
+        public CompletableFuture<DownloadInfo> getFuture() {
+            return future;
+        }
+
+        /**
+         * 收到文件信息、分段都排好队后完成，里面是每个分段的Future，分段结束时得到分段的字节数
+         *
+         * @return
+         */
+        public CompletableFuture<List<CompletableFuture<Long>>> getSegments() {
+            return segments;
+        }
+
+        /**
+         * 文件信息，收到HEAD响应之前为null
+         *
+         * @return
+         */
+        public DownloadInfo getDownloadInfo() {
+            return downloadInfo;
+        }
+
+        public long getDownloaded() {
+            return downloaded.get();
+        }
+
+        public SegmentStats getSegmentStats() {
+            return segmentStats;
+        }
+    }
+
+    /**
+     * 一个分段：收到响应头后交给读线程，读线程每次读一个分片，没读完就放回读线程的队列
+     */
+    class SegmentReader implements Runnable {
+        private final AsyncDownload download;
+        private final String host;
+        private final long startPos;
+        // 结束位置，包含在内；-1表示读到响应结束
+        private final long endPos;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        private long position;
+        private int retries;
+        // 当前这次请求的开始时间和开始位置，重试时重新计算
+        private long requestNanos;
+        private long requestPos;
+        private Response response;
+        private BufferedSource source;
+
+        SegmentReader(AsyncDownload download, long startPos, long endPos) {
+            this.download = download;
+            this.host = download.downloadInfo.getLocation().getHost();
+            this.startPos = startPos;
+            this.endPos = endPos;
+            this.position = startPos;
+        }
+
+        /**
+         * 从当前位置发出请求，出错重试时也从这里接着下载
+         */
+        void fetch() {
+            requestNanos = System.nanoTime();
+            requestPos = position;
+            Request.Builder builder = new Request.Builder().get().url(download.url);
+            if (endPos >= 0) {
+                builder.header("Range", "bytes=" + position + "-" + endPos);
+                if (StringUtils.isNotEmpty(download.eTag) && !download.eTag.startsWith("W/")) {
+                    builder.header("If-Range", download.eTag);
+                } else if (StringUtils.isNotEmpty(download.lastModified)) {
+                    builder.header("If-Range", download.lastModified);
+                }
+            }
+            enqueue(builder.build()).whenComplete((response, e) -> {
+                if (e != null) {
+                    retryOrFail(e);
+                } else {
+                    onResponse(response);
+                }
+            });
+        }
+
+        private void onResponse(Response response) {
+            int expected = endPos >= 0 ? 206 : 200;
+            if (response.code() != expected) {
+                response.close();
+                IOException e = new IOException("服务器没有返回分段内容：" + response.code());
+                if (response.code() == 200 && endPos >= 0) {
+                    // If-Range不匹配，文件已经变了，重试也没用
+                    future.completeExceptionally(e);
+                } else {
+                    retryOrFail(e);
+                }
+                return;
+            }
+            this.response = response;
+            this.source = response.body().source();
+            try {
+                readers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // 响应到达时引擎已经关闭，读线程不再接任务，这里不处理的话响应不会关闭，分段也永远不会结束
+                closeResponse();
+                future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * 读一个分片写到文件，没读完就把自己放回读线程的队列
+         */
+        @Override
+        public void run() {
+            try {
+                if (download.cancelled) {
+                    closeResponse();
+                    future.completeExceptionally(new CancellationException("下载已取消"));
+                    return;
+                }
+                ByteBuffer buffer = readBuffer.get();
+                buffer.clear();
+                if (endPos >= 0) {
+                    buffer.limit((int) Math.min(SLICE_SIZE, endPos - position + 1));
+                }
+                boolean eof = false;
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                int n = buffer.remaining();
+                download.writer.write(position, buffer);
+                position += n;
+                download.downloaded.addAndGet(n);
+                if (endPos >= 0 && position > endPos) {
+                    closeResponse();
+                    complete();
+                } else if (eof) {
+                    closeResponse();
+                    if (endPos >= 0) {
+                        throw new IOException("连接提前结束，分段未下载完：" + position + "-" + endPos);
+                    }
+                    complete();
+                } else {
+                    readers.execute(this);
+                }
+            } catch (IOException e) {
+                closeResponse();
+                retryOrFail(e);
+            } catch (RuntimeException e) {
+                closeResponse();
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void complete() {
+            download.segmentStats.record(requestPos, position - requestPos, System.nanoTime() - requestNanos);
+            future.complete(position - startPos);
+        }
+
+        private void retryOrFail(Throwable e) {
+            // 不知道结束位置的请求没法从中间接着下载
+            boolean canRetry = endPos >= 0 || position == startPos;
+            if (canRetry && !download.cancelled && retries++ < MAX_RETRIES) {
+                log.warn("分段 " + position + "-" + endPos + " 出错，第" + retries + "次重试：" + e.getMessage());
+                download.segmentStats.retry();
+                fetch();
+            } else {
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void closeResponse() {
+            if (response != null) {
+                response.close();
+                response = null;
+                source = null;
+            }
+        }
+    }
+
+    /**
+     * @param callThreads        建立连接、等待响应头的线程数
+     * @param readerThreads      读数据的线程数
+     * @param maxRequests        同时下载的分段数，也就是同时打开的连接数，从发出请求到响应体读完都算在内
+     * @param maxRequestsPerHost 对同一个服务器同时下载的分段数
+     */
+    public AsyncDownloadEngine(int callThreads, int readerThreads, int maxRequests, int maxRequestsPerHost) {
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.callExecutor = Executors.newFixedThreadPool(callThreads);
+        this.readers = Executors.newFixedThreadPool(readerThreads);
+        Dispatcher dispatcher = new Dispatcher(callExecutor);
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        // 连接池要能保留所有同时进行的请求的连接
+        HttpClientFactory.ensureCapacity(maxRequests);
+        this.client = HttpClientFactory.get().newBuilder().dispatcher(dispatcher).build();
+    }
+
+    /**
+     * 开始一个下载，马上返回，先异步获取文件信息，再把分段排队下载
+     *
+     * @param url
+     * @param saveTo 保存到哪
+     * @return
+     */
+    public AsyncDownload download(String url, String saveTo) {
+        AsyncDownload download = new AsyncDownload(url, saveTo);
+        Request headRequest = new Request.Builder()
+                .head()
+                .url(url)
+                .build();
+        enqueue(headRequest).whenComplete((response, e) -> {
+            if (e != null) {
+                download.fail(e);
+                return;
+            }
+            try (Response headResponse = response) {
+                download.start(headResponse);
+            } catch (IOException | RuntimeException startError) {
+                download.fail(startError);
+            }
+        });
+        return download;
+    }
+
+    /**
+     * 分段排队，有空闲的连接名额时发出请求
+     *
+     * @param readerList
+     */
+    private void schedule(List<SegmentReader> readerList) {
+        synchronized (this) {
+            waiting.addAll(readerList);
+        }
+        dispatchWaiting();
+    }
+
+    /**
+     * 按排队顺序发出请求，直到总数或者服务器的名额用完；已取消的下载的分段直接结束。
+     * 分段结束（完成、失败或取消）时归还名额，再发下一个
+     */
+    private void dispatchWaiting() {
+        List<SegmentReader> ready = new ArrayList<>();
+        List<SegmentReader> cancelled = new ArrayList<>();
+        synchronized (this) {
+            Iterator<SegmentReader> it = waiting.iterator();
+            while (it.hasNext()) {
+                SegmentReader reader = it.next();
+                if (reader.download.cancelled) {
+                    it.remove();
+                    cancelled.add(reader);
+                    continue;
+                }
+                if (running >= maxRequests) {
+                    break;
+                }
+                int hostRunning = runningPerHost.getOrDefault(reader.host, 0);
+                if (hostRunning >= maxRequestsPerHost) {
+                    continue;
+                }
+                it.remove();
+                running++;
+                runningPerHost.put(reader.host, hostRunning + 1);
+                ready.add(reader);
+            }
+        }
+        for (SegmentReader reader : cancelled) {
+            reader.future.completeExceptionally(new CancellationException("下载已取消"));
+        }
+        for (SegmentReader reader : ready) {
+            reader.future.whenComplete((n, e) -> release(reader));
+            reader.fetch();
+        }
+    }
+
+    private void release(SegmentReader reader) {
+        synchronized (this) {
+            running--;
+            int hostRunning = runningPerHost.get(reader.host) - 1;
+            if (hostRunning == 0) {
+                runningPerHost.remove(reader.host);
+            } else {
+                runningPerHost.put(reader.host, hostRunning);
+            }
+        }
+        dispatchWaiting();
+    }
+
+    /**
+     * 把enqueue的回调转成CompletableFuture，拿到响应后要负责关闭
+     *
+     * @param request
+     * @return
+     */
+    private CompletableFuture<Response> enqueue(Request request) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                future.complete(response);
+            }
+        });
+        return future;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * 设置分段大小，默认4MB
+     *
+     * @param segmentSize
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * 关闭引擎，已经发出的请求会被取消，还在排队的分段以CancellationException结束
+     */
+    @Override
+    public void close() {
+        List<SegmentReader> cancelled;
+        synchronized (this) {
+            cancelled = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (SegmentReader reader : cancelled) {
+            reader.future.completeExceptionally(new CancellationException("下载引擎已关闭"));
+        }
+        client.dispatcher().cancelAll();
+        readers.shutdown();
+        callExecutor.shutdown();
+    }
+
+    /**
+     * 根据响应头或URL获取文件名
+     *
+     * @param response
+     * @return
+     */
+    private String getFileName(Response response) {
+        String charset = "UTF-8";
+        String uriPath = response.request().url().uri().getRawPath();
+        String name = uriPath.substring(uriPath.lastIndexOf("/") + 1);
+
+        String contentDisposition = response.header("Content-Disposition");
+        if (contentDisposition != null) {
+            int p1 = contentDisposition.indexOf("filename");
+            //有的Content-Disposition里面的filename后面是*=，是*=的文件名后面一般都带了编码名称，按它提供的编码进行解码可以避免文件名乱码
+            int p2 = contentDisposition.indexOf("*=", p1);
+            if (p2 >= 0) {
+                //有的Content-Disposition里面会在文件名后面带上文件名的字符编码
+                int p3 = contentDisposition.indexOf("''", p2);
+                if (p3 >= 0) {
+                    charset = contentDisposition.substring(p2 + 2, p3);
+                } else {
+                    p3 = p2;
+                }
+                name = contentDisposition.substring(p3 + 2);
+            } else {
+                p2 = contentDisposition.indexOf("=", p1);
+                if (p2 >= 0) {
+                    name = contentDisposition.substring(p2 + 1);
+                }
+            }
+        }
+        try {
+            name = URLDecoder.decode(name, charset);
+        } catch (UnsupportedEncodingException e) {
+        }
+        return name;
+    }
+}
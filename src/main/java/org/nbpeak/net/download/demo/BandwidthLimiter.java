@@ -0,0 +1,348 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.nbpeak.net.download.Utils;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分层限速：全局、每个主机、每个下载三级限速，都可以在运行时修改。
+ * 上一级的限速按权重分给下面的下载（某个下载自己的限速比分到的少时，多出来的再分给其他下载），
+ * 算出来的速度设到每个下载自己的令牌桶上，读数据时只和同一个下载的线程竞争这一个桶，不用每次都去锁全局的桶。
+ * 读循环里用Meter攒够一批（64KB）再扣令牌，不在每次8KB的read之后都扣。
+ */
+@Slf4j
+public class BandwidthLimiter {
+    public static final int BATCH_SIZE = 64 * 1024;
+
+    // 全局限速，字节/秒，0表示不限速
+    private long globalRate;
+    private final Map<String, Long> hostRates = new HashMap<>();
+    private final List<Download> downloads = new ArrayList<>();
+
+    /**
+     * 令牌桶：令牌可以欠，扣成负数时按欠的数量算出要等多久，后来的请求排在后面等
+     */
+    private static class TokenBucket {
+        private long rate;
+        private double capacity;
+        private double tokens;
+        private long lastNanos = System.nanoTime();
+
+        synchronized void setRate(long rate) {
+            refill(System.nanoTime());
+            this.rate = rate;
+            // 最多攒四分之一秒的令牌，至少能放下两批
+            this.capacity = Math.max(rate / 4.0, 2.0 * BATCH_SIZE);
+            this.tokens = Math.min(tokens, capacity);
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        /**
+         * 扣除令牌
+         *
+         * @param bytes
+         * @return 需要等待的纳秒数
+         */
+        synchronized long reserve(long bytes) {
+            if (rate <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            refill(now);
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+
+        private void refill(long now) {
+            if (rate > 0) {
+                tokens = Math.min(capacity, tokens + (now - lastNanos) * rate / 1e9);
+            }
+            lastNanos = now;
+        }
+    }
+
+    /**
+     * 一个下载在限速器里的登记，下载结束后要关闭
+     */
+    public class Download implements Closeable {
+        private final String host;
+        private final TokenBucket bucket = new TokenBucket();
+        private int weight;
+        // 下载自己的限速，0表示不限速
+        private long rate;
+
+        private Download(String host, int weight, long rate) {
+            this.host = host;
+            this.weight = weight;
+            this.rate = rate;
+        }
+
+        /**
+         * 扣除读到的字节数对应的令牌，超速时等待
+         *
+         * @param bytes
+         * @throws InterruptedException
+         */
+        public void acquire(long bytes) throws InterruptedException {
+            long waitNanos = bucket.reserve(bytes);
+            if (waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+
+        /**
+         * 给一个读循环用的计数器，不是线程安全的，每个线程一个
+         *
+         * @return
+         */
+        public Meter newMeter() {
+            return new Meter(this);
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        /**
+         * 修改权重，上一级限速时权重大的分得多
+         *
+         * @param weight
+         */
+        public void setWeight(int weight) {
+            synchronized (BandwidthLimiter.this) {
+                this.weight = Math.max(1, weight);
+                rebalance();
+            }
+        }
+
+        public long getRate() {
+            return rate;
+        }
+
+        /**
+         * 修改下载自己的限速
+         *
+         * @param rate 字节/秒，0表示不限速
+         */
+        public void setRate(long rate) {
+            synchronized (BandwidthLimiter.this) {
+                this.rate = Math.max(0, rate);
+                rebalance();
+            }
+        }
+
+        /**
+         * 实际生效的限速，综合了三级限速和权重
+         *
+         * @return 字节/秒，0表示不限速
+         */
+        public long getEffectiveRate() {
+            return bucket.getRate();
+        }
+
+        @Override
+        public void close() {
+            synchronized (BandwidthLimiter.this) {
+                if (downloads.remove(this)) {
+                    rebalance();
+                }
+            }
+        }
+    }
+
+    /**
+     * 给一个读循环用的计数器，download为空时不限速
+     *
+     * @param download
+     * @return
+     */
+    public static Meter newMeter(Download download) {
+        return new Meter(download);
+    }
+
+    /**
+     * 读循环的计数器：读到的字节先攒着，够一批再扣令牌
+     */
+    public static class Meter {
+        private final Download download;
+        private long pending;
+
+        private Meter(Download download) {
+            this.download = download;
+        }
+
+        /**
+         * 记录读到的字节数
+         *
+         * @param bytes
+         * @throws InterruptedIOException
+         */
+        public void add(int bytes) throws InterruptedIOException {
+            if (download == null) {
+                return;
+            }
+            pending += bytes;
+            if (pending >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * 把攒着的字节数扣掉，读循环结束时调用
+         *
+         * @throws InterruptedIOException
+         */
+        public void flush() throws InterruptedIOException {
+            if (pending == 0) {
+                return;
+            }
+            long bytes = pending;
+            pending = 0;
+            try {
+                download.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("限速等待时被中断");
+            }
+        }
+    }
+
+    public BandwidthLimiter() {
+    }
+
+    /**
+     * @param globalRate 全局限速，字节/秒，0表示不限速
+     */
+    public BandwidthLimiter(long globalRate) {
+        this.globalRate = Math.max(0, globalRate);
+    }
+
+    /**
+     * 登记一个下载
+     *
+     * @param host   下载的主机
+     * @param weight 权重，至少为1
+     * @param rate   下载自己的限速，字节/秒，0表示不限速
+     * @return
+     */
+    public synchronized Download register(String host, int weight, long rate) {
+        Download download = new Download(host, Math.max(1, weight), Math.max(0, rate));
+        downloads.add(download);
+        rebalance();
+        return download;
+    }
+
+    public synchronized long getGlobalRate() {
+        return globalRate;
+    }
+
+    /**
+     * 修改全局限速
+     *
+     * @param globalRate 字节/秒，0表示不限速
+     */
+    public synchronized void setGlobalRate(long globalRate) {
+        this.globalRate = Math.max(0, globalRate);
+        rebalance();
+    }
+
+    /**
+     * 修改某个主机的限速
+     *
+     * @param host
+     * @param rate 字节/秒，0表示不限速
+     */
+    public synchronized void setHostRate(String host, long rate) {
+        if (rate > 0) {
+            hostRates.put(host, rate);
+        } else {
+            hostRates.remove(host);
+        }
+        rebalance();
+    }
+
+    public synchronized long getHostRate(String host) {
+        return hostRates.getOrDefault(host, 0L);
+    }
+
+    /**
+     * 重新计算每个下载的速度：先在每个主机内部按权重分主机的限速，再在所有下载之间按权重分全局限速
+     */
+    private void rebalance() {
+        Map<Download, Double> caps = new IdentityHashMap<>();
+        for (Download download : downloads) {
+            caps.put(download, download.rate > 0 ? (double) download.rate : Double.POSITIVE_INFINITY);
+        }
+        Map<String, List<Download>> byHost = new HashMap<>();
+        for (Download download : downloads) {
+            byHost.computeIfAbsent(download.host, k -> new ArrayList<>()).add(download);
+        }
+        for (Map.Entry<String, List<Download>> entry : byHost.entrySet()) {
+            Long hostRate = hostRates.get(entry.getKey());
+            if (hostRate != null) {
+                share(hostRate, entry.getValue(), caps);
+            }
+        }
+        if (globalRate > 0) {
+            share(globalRate, downloads, caps);
+        }
+        for (Download download : downloads) {
+            double cap = caps.get(download);
+            download.bucket.setRate(Double.isInfinite(cap) ? 0 : Math.max(1, (long) cap));
+        }
+        if (log.isDebugEnabled()) {
+            for (Download download : downloads) {
+                log.debug("限速：" + download.host + "，权重：" + download.weight + "，速度：" + Utils.byteToUnit(download.getEffectiveRate()) + "/秒");
+            }
+        }
+    }
+
+    /**
+     * 按权重分配速度，某个下载的上限比分到的少时只给它上限，剩下的再按权重分给其他下载
+     *
+     * @param total 要分配的总速度
+     * @param list  参与分配的下载
+     * @param caps  每个下载目前的上限，分配后更新为分到的速度
+     */
+    private static void share(double total, List<Download> list, Map<Download, Double> caps) {
+        List<Download> open = new ArrayList<>(list);
+        double remaining = total;
+        while (!open.isEmpty()) {
+            double weightSum = 0;
+            for (Download download : open) {
+                weightSum += download.weight;
+            }
+            List<Download> capped = new ArrayList<>();
+            for (Download download : open) {
+                if (caps.get(download) <= remaining * download.weight / weightSum) {
+                    capped.add(download);
+                }
+            }
+            if (capped.isEmpty()) {
+                for (Download download : open) {
+                    caps.put(download, remaining * download.weight / weightSum);
+                }
+                return;
+            }
+            for (Download download : capped) {
+                remaining -= caps.get(download);
+                open.remove(download);
+            }
+        }
+    }
+}
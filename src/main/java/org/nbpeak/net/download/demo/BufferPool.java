@@ -0,0 +1,143 @@
+package org.nbpeak.net.download.demo;
+
+import org.nbpeak.net.download.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 固定大小的直接内存缓冲池，总内存不超过预算。
+ * 预算用完后acquire会阻塞，直到写文件的任务release了缓冲，以此给下载线程施加背压，避免磁盘慢于网络时内存无限增长。
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Deque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // 已经分配出去的缓冲数（包括空闲的）
+    private int allocated;
+
+    // 统计：复用到空闲缓冲的次数、新分配缓冲的次数、因预算用完而等待的次数和总等待时间
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param bufferSize   每个缓冲的大小
+     * @param memoryBudget 缓冲池最多占用的内存，至少能分配一个缓冲
+     */
+    public BufferPool(int bufferSize, long memoryBudget) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize必须大于0：" + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        this.maxBuffers = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / bufferSize));
+    }
+
+    /**
+     * 获取一个已清空的缓冲，预算用完时阻塞等待
+     *
+     * @return
+     * @throws InterruptedException
+     */
+    public ByteBuffer acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (freeBuffers.isEmpty() && allocated >= maxBuffers) {
+                waits.incrementAndGet();
+                long begin = System.nanoTime();
+                while (freeBuffers.isEmpty() && allocated >= maxBuffers) {
+                    available.await();
+                }
+                waitNanos.addAndGet(System.nanoTime() - begin);
+            }
+            ByteBuffer buffer = freeBuffers.pollFirst();
+            if (buffer != null) {
+                hits.incrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+            allocated++;
+        } finally {
+            lock.unlock();
+        }
+        // 直接内存分配比较慢，放到锁外面做
+        misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * 归还缓冲，唤醒一个等待的线程
+     *
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+        lock.lock();
+        try {
+            freeBuffers.offerFirst(buffer);
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getMaxBuffers() {
+        return maxBuffers;
+    }
+
+    public long getMemoryBudget() {
+        return (long) bufferSize * maxBuffers;
+    }
+
+    public int getAllocated() {
+        lock.lock();
+        try {
+            return allocated;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getWaits() {
+        return waits.get();
+    }
+
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{" +
+                "bufferSize=" + Utils.byteToUnit(bufferSize) +
+                ", budget=" + Utils.byteToUnit(getMemoryBudget()) +
+                ", allocated=" + getAllocated() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", waits=" + getWaits() +
+                ", waitMillis=" + getWaitMillis() +
+                '}';
+    }
+}
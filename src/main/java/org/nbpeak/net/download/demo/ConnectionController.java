@@ -0,0 +1,130 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.nbpeak.net.download.Utils;
+
+/**
+ * 连接数自动调节（AIMD）：从最小连接数开始，每个调节周期比较平均速度，
+ * 速度还在明显上升就加一个连接；加了连接速度却不涨就退回去并保持一段时间；
+ * 出现错误或者服务器限流（429/503）时连接数减半。
+ */
+@Slf4j
+public class ConnectionController {
+    // 速度提升超过这个比例才认为加连接有用
+    private static final double GROWTH_THRESHOLD = 0.05;
+    // 每几个速度样本（SpeedStatistician每秒一个）做一次调节
+    private static final int SAMPLES_PER_ROUND = 2;
+    // 速度不再上升时，保持几个调节周期后再尝试加连接
+    private static final int HOLD_ROUNDS = 5;
+
+    private final int minConnections;
+    private final int maxConnections;
+    private volatile int target;
+
+    private long speedSum;
+    private int sampleCount;
+    private long baselineSpeed;
+    private boolean probing;
+    private int holdRounds;
+    private int errors;
+    private boolean throttled;
+
+    /**
+     * @param minConnections 最小连接数，也是初始连接数
+     * @param maxConnections 最大连接数
+     */
+    public ConnectionController(int minConnections, int maxConnections) {
+        if (minConnections < 1 || maxConnections < minConnections) {
+            throw new IllegalArgumentException("连接数范围不正确：" + minConnections + "-" + maxConnections);
+        }
+        this.minConnections = minConnections;
+        this.maxConnections = maxConnections;
+        this.target = minConnections;
+    }
+
+    /**
+     * 当前期望的连接数
+     *
+     * @return
+     */
+    public int getTarget() {
+        return target;
+    }
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * 收到一个速度样本，攒够一个周期后调节连接数
+     *
+     * @param speed 每秒字节数
+     */
+    public synchronized void onSpeed(long speed) {
+        speedSum += speed;
+        if (++sampleCount < SAMPLES_PER_ROUND) {
+            return;
+        }
+        long avgSpeed = speedSum / sampleCount;
+        speedSum = 0;
+        sampleCount = 0;
+        adjust(avgSpeed);
+    }
+
+    /**
+     * 请求出错（连接失败、读超时等）
+     */
+    public synchronized void onError() {
+        errors++;
+    }
+
+    /**
+     * 服务器返回429或503，说明连接太多了。不等这个调节周期结束，马上把连接数减半，一个周期里只减一次
+     */
+    public synchronized void onThrottled() {
+        errors++;
+        if (!throttled) {
+            int old = target;
+            target = Math.max(minConnections, target / 2);
+            if (target != old) {
+                log.info("服务器限流，调整连接数：" + old + " -> " + target);
+            }
+        }
+        throttled = true;
+    }
+
+    private void adjust(long avgSpeed) {
+        int old = target;
+        if (errors > 0) {
+            // 乘性减：出错或限流时连接数减半，限流时已经减过了
+            if (!throttled) {
+                target = Math.max(minConnections, target / 2);
+            }
+            holdRounds = throttled ? HOLD_ROUNDS * 2 : HOLD_ROUNDS;
+            probing = false;
+            baselineSpeed = avgSpeed;
+            errors = 0;
+            throttled = false;
+        } else if (probing && avgSpeed < baselineSpeed * (1 + GROWTH_THRESHOLD)) {
+            // 上次加的连接没带来明显提升，退回去，过一段时间再试
+            target = Math.max(minConnections, target - 1);
+            holdRounds = HOLD_ROUNDS;
+            probing = false;
+        } else if (holdRounds > 0) {
+            holdRounds--;
+            baselineSpeed = Math.max(baselineSpeed, avgSpeed);
+        } else if (target < maxConnections) {
+            // 加性增：每次加一个连接试试
+            baselineSpeed = avgSpeed;
+            target++;
+            probing = true;
+        }
+        if (target != old) {
+            log.info("调整连接数：" + old + " -> " + target + "，平均速度：" + Utils.byteToUnit(avgSpeed) + "/秒");
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接复用统计：通过OkHttp的EventListener记录请求数、新建的TCP连接数和TLS握手数。
+ * 每个请求都会取得一个连接，取得的连接数减去新建的连接数就是复用的次数。
+ */
+public class ConnectionStats extends EventListener {
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong connectionsAcquired = new AtomicLong();
+    private final AtomicLong connectsStarted = new AtomicLong();
+    private final AtomicLong connectsFailed = new AtomicLong();
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+
+    @Override
+    public void callStart(Call call) {
+        calls.incrementAndGet();
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectsStarted.incrementAndGet();
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+        connectsFailed.incrementAndGet();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        tlsHandshakes.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        connectionsAcquired.incrementAndGet();
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getConnectionsAcquired() {
+        return connectionsAcquired.get();
+    }
+
+    /**
+     * 新建成功的连接数
+     *
+     * @return
+     */
+    public long getNewConnections() {
+        return connectsStarted.get() - connectsFailed.get();
+    }
+
+    /**
+     * 复用已有连接的次数
+     *
+     * @return
+     */
+    public long getReusedConnections() {
+        return Math.max(0, connectionsAcquired.get() - getNewConnections());
+    }
+
+    public long getTlsHandshakes() {
+        return tlsHandshakes.get();
+    }
+
+    /**
+     * 清零，方便只统计某一次下载
+     */
+    public void reset() {
+        calls.set(0);
+        connectionsAcquired.set(0);
+        connectsStarted.set(0);
+        connectsFailed.set(0);
+        tlsHandshakes.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionStats{calls=" + getCalls() +
+                ", acquired=" + getConnectionsAcquired() +
+                ", new=" + getNewConnections() +
+                ", reused=" + getReusedConnections() +
+                ", tlsHandshakes=" + getTlsHandshakes() +
+                "}";
+    }
+}
@@ -0,0 +1,155 @@
+package org.nbpeak.net.download.demo;
+
+import java.security.MessageDigest;
+
+/**
+ * CRC32C（Castagnoli多项式），Java 8里还没有java.util.zip.CRC32C，这里用查表法自己算，每次处理8个字节。
+ * 做成MessageDigest的子类，和SHA-256、MD5一样使用；另外提供combine，多个分段各自算完后按顺序合并成整个文件的CRC，
+ * 不需要把文件按顺序再读一遍
+ */
+public class Crc32c extends MessageDigest {
+    // 反转后的Castagnoli多项式
+    private static final int POLY = 0x82F63B78;
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            }
+            TABLE[0][n] = c;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int k = 1; k < 8; k++) {
+                int c = TABLE[k - 1][n];
+                TABLE[k][n] = (c >>> 8) ^ TABLE[0][c & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    public Crc32c() {
+        super(ExpectedDigest.CRC32C);
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        crc = (crc >>> 8) ^ TABLE[0][(crc ^ input) & 0xff];
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        int c = crc;
+        int[] t0 = TABLE[0], t1 = TABLE[1], t2 = TABLE[2], t3 = TABLE[3], t4 = TABLE[4], t5 = TABLE[5], t6 = TABLE[6], t7 = TABLE[7];
+        while (len >= 8) {
+            int lo = c ^ ((input[offset] & 0xff) | (input[offset + 1] & 0xff) << 8 | (input[offset + 2] & 0xff) << 16 | (input[offset + 3] & 0xff) << 24);
+            int hi = (input[offset + 4] & 0xff) | (input[offset + 5] & 0xff) << 8 | (input[offset + 6] & 0xff) << 16 | (input[offset + 7] & 0xff) << 24;
+            c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                    ^ t3[hi & 0xff] ^ t2[(hi >>> 8) & 0xff] ^ t1[(hi >>> 16) & 0xff] ^ t0[hi >>> 24];
+            offset += 8;
+            len -= 8;
+        }
+        while (len-- > 0) {
+            c = (c >>> 8) ^ t0[(c ^ input[offset++]) & 0xff];
+        }
+        crc = c;
+    }
+
+    /**
+     * 当前的CRC值，不会重置
+     *
+     * @return
+     */
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long value = getValue();
+        engineReset();
+        return toBytes(value);
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 4;
+    }
+
+    @Override
+    protected void engineReset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * CRC值按大端序转成4个字节，和x-goog-hash等响应头里的格式一致
+     *
+     * @param value
+     * @return
+     */
+    public static byte[] toBytes(long value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    /**
+     * 合并两段数据的CRC：已知前一段的crc1和后一段的crc2、后一段的长度，得到两段连起来的CRC。
+     * 和zlib的crc32_combine一样，把"在后面补len2个0字节"看成GF(2)上的矩阵，用平方的方法在log(len2)步内算完
+     *
+     * @param crc1 前一段的CRC
+     * @param crc2 后一段的CRC
+     * @param len2 后一段的长度
+     * @return
+     */
+    public static long combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // 补1个0比特的矩阵
+        odd[0] = POLY & 0xFFFFFFFFL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // 补2个、4个0比特
+        square(even, odd);
+        square(odd, even);
+        // 第一次循环得到补1个0字节（8个0比特）的矩阵，之后每次翻倍
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(mat, mat[n]);
+        }
+    }
+}
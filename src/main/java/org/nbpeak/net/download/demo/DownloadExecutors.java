@@ -0,0 +1,97 @@
+package org.nbpeak.net.download.demo;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载用的线程池：网络读取、磁盘写入、后续处理（合并文件、校验等）各用一个线程池，大小分别设置，各有排队统计。
+ * 不再借用ForkJoinPool.commonPool：修改common.parallelism在公共池初始化以后就不起作用了，
+ * 而且下载的阻塞IO会占住宿主程序里所有并行流共用的线程。
+ */
+public class DownloadExecutors {
+    public static final int DEFAULT_NETWORK_THREADS = 16;
+    public static final int DEFAULT_DISK_THREADS = 2;
+
+    private static volatile DownloadExecutors defaultExecutors;
+
+    private final MeteredThreadPool network;
+    private final MeteredThreadPool disk;
+    private final MeteredThreadPool postProcess;
+
+    /**
+     * @param networkThreads     网络读取的线程数，决定所有下载加起来同时有多少个分段在下载
+     * @param diskThreads        写磁盘的线程数
+     * @param postProcessThreads 后续处理的线程数
+     */
+    public DownloadExecutors(int networkThreads, int diskThreads, int postProcessThreads) {
+        this.network = new MeteredThreadPool("download-network", networkThreads);
+        this.disk = new MeteredThreadPool("download-disk", diskThreads);
+        this.postProcess = new MeteredThreadPool("download-post", postProcessThreads);
+    }
+
+    /**
+     * 默认的线程池，所有没有单独设置线程池的下载共用
+     *
+     * @return
+     */
+    public static DownloadExecutors getDefault() {
+        if (defaultExecutors == null) {
+            synchronized (DownloadExecutors.class) {
+                if (defaultExecutors == null) {
+                    // 后续处理主要是计算，最多占一半的CPU，给宿主程序留出余量
+                    int postProcessThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+                    defaultExecutors = new DownloadExecutors(DEFAULT_NETWORK_THREADS, DEFAULT_DISK_THREADS, postProcessThreads);
+                }
+            }
+        }
+        return defaultExecutors;
+    }
+
+    /**
+     * 网络读取：发请求、读响应体，大部分时间阻塞在网络上
+     *
+     * @return
+     */
+    public MeteredThreadPool network() {
+        return network;
+    }
+
+    /**
+     * 磁盘写入：写文件任务、刷盘
+     *
+     * @return
+     */
+    public MeteredThreadPool disk() {
+        return disk;
+    }
+
+    /**
+     * 后续处理：合并临时文件、计算校验和等
+     *
+     * @return
+     */
+    public MeteredThreadPool postProcess() {
+        return postProcess;
+    }
+
+    /**
+     * 关闭所有线程池，等待已提交的任务结束
+     *
+     * @param timeout
+     * @param unit
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        network.shutdown();
+        disk.shutdown();
+        postProcess.shutdown();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        network.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        disk.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        postProcess.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadExecutors{" + network + ", " + disk + ", " + postProcess + "}";
+    }
+}
@@ -0,0 +1,308 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.nbpeak.net.download.demo.pojo.DownloadInfo;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载管理器：接收多个下载，按优先级排队，同时运行的下载数和连接总数都有上限。
+ * 所有下载共用一个固定大小的下载线程池，线程数就是全局连接数，排队的下载再多也只有这么多下载线程；
+ * 每个运行中的下载平分连接数。下载都使用断点续传模式，停止后重新提交会接着下载。
+ */
+@Slf4j
+public class DownloadManager {
+    private final int maxActiveJobs;
+    private final int maxConnections;
+    // 所有下载共用的下载线程池
+    private final ExecutorService workerPool;
+    // 运行下载任务（获取文件信息、等待下载线程结束）的线程，每个运行中的下载占一个
+    private final ExecutorService jobPool;
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+    private final Set<Job> running = ConcurrentHashMap.newKeySet();
+    private final Semaphore jobSlots;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread dispatcher;
+    private volatile boolean shutdown;
+    // 限速器，为空时不限速
+    private volatile BandwidthLimiter bandwidthLimiter;
+
+    /**
+     * 一个排队的下载
+     */
+    public class Job implements Comparable<Job> {
+        private final String url;
+        private final String saveTo;
+        private final int priority;
+        private final long seq;
+        private final CompletableFuture<DownloadInfo> future = new CompletableFuture<>();
+        private volatile DownloadInfo downloadInfo;
+        private DownloadTask1 task;
+        private boolean stopRequested;
+
+        private Job(String url, String saveTo, int priority) throws MalformedURLException {
+            this.url = url;
+            this.saveTo = saveTo;
+            this.priority = priority;
+            this.seq = sequence.getAndIncrement();
+            // 开始下载前还不知道文件信息，先用一个只有URL的下载信息占位
+            this.downloadInfo = new DownloadInfo(new URL(url), -1);
+        }
+
+        /**
+         * 开始运行时关联下载任务，运行前已经被停止的返回false
+         */
+        private synchronized boolean attach(DownloadTask1 task) {
+            if (stopRequested) {
+                return false;
+            }
+            this.task = task;
+            this.downloadInfo = task.getDownloadInfo();
+            return true;
+        }
+
+        /**
+         * 停止下载：排队中的直接移出队列，运行中的通知下载任务停止
+         */
+        public synchronized void stop() {
+            stopRequested = true;
+            if (task != null) {
+                task.stop();
+            } else if (queue.remove(this)) {
+                downloadInfo.setStatus(DownloadInfo.Status.STOPPED);
+                future.complete(downloadInfo);
+            }
+        }
+
+        private synchronized boolean isStopRequested() {
+            return stopRequested;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getSaveTo() {
+            return saveTo;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public DownloadInfo getDownloadInfo() {
+            return downloadInfo;
+        }
+
+        public DownloadInfo.Status getStatus() {
+            return downloadInfo.getStatus();
+        }
+
+        /**
+         * 下载结束（完成、停止或失败）时完成，管理器关闭时没来得及运行的下载异常完成
+         *
+         * @return
+         */
+        public CompletableFuture<DownloadInfo> getFuture() {
+            return future;
+        }
+
+        @Override
+        public int compareTo(Job o) {
+            // 优先级高的先运行，优先级相同时先提交的先运行
+            if (priority != o.priority) {
+                return Integer.compare(o.priority, priority);
+            }
+            return Long.compare(seq, o.seq);
+        }
+
+        @Override
+        public String toString() {
+            return "Job{" + url + ", priority=" + priority + ", status=" + getStatus() + "}";
+        }
+    }
+
+    /**
+     * @param maxActiveJobs  同时运行的下载数
+     * @param maxConnections 所有下载的连接总数，也是下载线程的总数
+     */
+    public DownloadManager(int maxActiveJobs, int maxConnections) {
+        if (maxActiveJobs < 1 || maxConnections < maxActiveJobs) {
+            throw new IllegalArgumentException("下载数或连接数不正确：" + maxActiveJobs + "，" + maxConnections);
+        }
+        this.maxActiveJobs = maxActiveJobs;
+        this.maxConnections = maxConnections;
+        // 连接池至少要能保留所有下载线程的连接，分段之间、下载之间才能复用
+        HttpClientFactory.ensureCapacity(maxConnections);
+        this.workerPool = Executors.newFixedThreadPool(maxConnections);
+        this.jobPool = Executors.newFixedThreadPool(maxActiveJobs);
+        this.jobSlots = new Semaphore(maxActiveJobs);
+        this.dispatcher = new Thread(this::dispatch, "download-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * 提交一个下载，优先级默认为0
+     *
+     * @param url
+     * @param saveTo 保存到哪
+     * @return
+     * @throws MalformedURLException
+     */
+    public Job submit(String url, String saveTo) throws MalformedURLException {
+        return submit(url, saveTo, 0);
+    }
+
+    /**
+     * 提交一个下载
+     *
+     * @param url
+     * @param saveTo   保存到哪
+     * @param priority 优先级，数字大的先运行
+     * @return
+     * @throws MalformedURLException
+     */
+    public Job submit(String url, String saveTo, int priority) throws MalformedURLException {
+        if (shutdown) {
+            throw new IllegalStateException("下载管理器已关闭");
+        }
+        Job job = new Job(url, saveTo, priority);
+        queue.add(job);
+        log.info("加入下载队列：" + url + "，优先级：" + priority + "，排队数：" + queue.size());
+        return job;
+    }
+
+    /**
+     * 有空闲的下载名额时，从队列里取优先级最高的下载运行
+     */
+    private void dispatch() {
+        try {
+            while (!shutdown) {
+                jobSlots.acquire();
+                Job job = queue.take();
+                running.add(job);
+                try {
+                    jobPool.execute(() -> run(job));
+                } catch (RejectedExecutionException e) {
+                    // 取出下载后管理器被关闭了，这个下载不会再运行
+                    running.remove(job);
+                    jobSlots.release();
+                    job.getDownloadInfo().setStatus(DownloadInfo.Status.STOPPED);
+                    job.getFuture().completeExceptionally(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // 关闭管理器
+        }
+    }
+
+    private void run(Job job) {
+        try {
+            if (job.isStopRequested()) {
+                job.getDownloadInfo().setStatus(DownloadInfo.Status.STOPPED);
+                return;
+            }
+            DownloadTask1 task = new DownloadTask1(job.getUrl());
+            task.setExecutor(workerPool);
+            // 每个运行中的下载平分连接总数
+            task.setThreadCount(Math.max(1, maxConnections / maxActiveJobs));
+            task.setResume(true);
+            if (!job.attach(task)) {
+                job.getDownloadInfo().setStatus(DownloadInfo.Status.STOPPED);
+                return;
+            }
+            BandwidthLimiter limiter = bandwidthLimiter;
+            if (limiter != null) {
+                // 优先级高的下载分到的带宽多，默认优先级0的权重是1
+                task.setBandwidthLimiter(limiter, Math.max(1, job.getPriority() + 1), 0);
+            }
+            task.start(job.getSaveTo());
+            log.info("下载结束：" + job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.getDownloadInfo().setStatus(DownloadInfo.Status.STOPPED);
+        } catch (Exception e) {
+            log.error("下载失败：" + job.getUrl(), e);
+            job.getDownloadInfo().setStatus(DownloadInfo.Status.FAILED);
+        } finally {
+            running.remove(job);
+            jobSlots.release();
+            job.getFuture().complete(job.getDownloadInfo());
+        }
+    }
+
+    /**
+     * 排队中的下载数
+     *
+     * @return
+     */
+    public int getWaitingCount() {
+        return queue.size();
+    }
+
+    /**
+     * 运行中的下载数
+     *
+     * @return
+     */
+    public int getRunningCount() {
+        return running.size();
+    }
+
+    public int getMaxActiveJobs() {
+        return maxActiveJobs;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * 设置限速器，之后开始运行的下载按优先级加权分享限速器的带宽
+     *
+     * @param bandwidthLimiter
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * 关闭管理器：排队中的下载全部停止，运行中的下载停止并等待退出，已写好的部分记在断点记录里
+     *
+     * @param timeout
+     * @param unit
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        shutdown = true;
+        dispatcher.interrupt();
+        Job job;
+        while ((job = queue.poll()) != null) {
+            job.stop();
+            job.getDownloadInfo().setStatus(DownloadInfo.Status.STOPPED);
+            job.getFuture().complete(job.getDownloadInfo());
+        }
+        for (Job runningJob : running) {
+            runningJob.stop();
+        }
+        jobPool.shutdown();
+        jobPool.awaitTermination(timeout, unit);
+        workerPool.shutdown();
+    }
+}
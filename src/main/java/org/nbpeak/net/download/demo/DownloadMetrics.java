@@ -0,0 +1,320 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 请求级别的下载指标：每个请求的DNS、建连、TLS握手、首字节时间，按服务器IP分别统计请求数、出错数和下载量，
+ * 再加上所有下载汇总的分段统计。通过OkHttp的EventListener.Factory给每个请求一个记录器，
+ * 只在请求的各个阶段记录，读数据的循环里不做任何事，也就不会在读数据时分配对象。
+ * 可以直接调用getter拉取当前数据，也可以注册成JMX MBean查看
+ */
+public class DownloadMetrics implements EventListener.Factory, DownloadMetricsMXBean {
+    public static final String OBJECT_NAME = "org.nbpeak.net.download:type=DownloadMetrics";
+
+    // 原有的连接复用统计，每个请求的事件也转给它
+    private final ConnectionStats connectionStats;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final Histogram dns = new Histogram("us");
+    private final Histogram connect = new Histogram("us");
+    private final Histogram tls = new Histogram("us");
+    private final Histogram timeToFirstByte = new Histogram("us");
+    private final SegmentStats segmentStats = new SegmentStats();
+    private final Map<String, ServerStats> servers = new ConcurrentHashMap<>();
+
+    /**
+     * 一个服务器IP上的统计
+     */
+    public static class ServerStats {
+        private final String address;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder connects = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final Histogram timeToFirstByte = new Histogram("us");
+
+        ServerStats(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * 新建的连接数
+         *
+         * @return
+         */
+        public long getConnects() {
+            return connects.sum();
+        }
+
+        /**
+         * 收到的响应体字节数
+         *
+         * @return
+         */
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        public Histogram.Snapshot getTimeToFirstByte() {
+            return timeToFirstByte.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            return address + "{requests=" + getRequests() +
+                    ", failures=" + getFailures() +
+                    ", connects=" + getConnects() +
+                    ", bytes=" + getBytes() +
+                    ", ttfb=" + getTimeToFirstByte() +
+                    "}";
+        }
+    }
+
+    /**
+     * 一个请求的记录器，记下各个阶段的开始时间，阶段结束时把耗时记到直方图里
+     */
+    private class CallRecorder extends EventListener {
+        private long dnsStart;
+        private long connectStart;
+        private long secureConnectStart;
+        private long requestStart;
+        private ServerStats server;
+
+        @Override
+        public void callStart(Call call) {
+            requests.increment();
+            connectionStats.callStart(call);
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            dns.record(micros(dnsStart));
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStart = System.nanoTime();
+            connectionStats.connectStart(call, inetSocketAddress, proxy);
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            secureConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            tls.record(micros(secureConnectStart));
+            connectionStats.secureConnectEnd(call, handshake);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            connect.record(micros(connectStart));
+            serverFor(inetSocketAddress).connects.increment();
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+            serverFor(inetSocketAddress).failures.increment();
+            connectionStats.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            server = serverFor(connection.route().socketAddress());
+            server.requests.increment();
+            connectionStats.connectionAcquired(call, connection);
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            // 重定向、认证时同一个请求会发多次，每次都单独计算首字节时间
+            requestStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            long elapsed = micros(requestStart);
+            timeToFirstByte.record(elapsed);
+            if (server != null) {
+                server.timeToFirstByte.record(elapsed);
+            }
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            if (server != null) {
+                server.bytes.add(byteCount);
+            }
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            failedRequests.increment();
+            if (server != null) {
+                server.failures.increment();
+            }
+        }
+    }
+
+    /**
+     * @param connectionStats 连接复用统计，每个请求的事件也转给它
+     */
+    public DownloadMetrics(ConnectionStats connectionStats) {
+        this.connectionStats = connectionStats;
+    }
+
+    @Override
+    public EventListener create(Call call) {
+        return new CallRecorder();
+    }
+
+    private static long micros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    private ServerStats serverFor(InetSocketAddress address) {
+        String key = address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+        return servers.computeIfAbsent(key, ServerStats::new);
+    }
+
+    /**
+     * 注册到平台MBeanServer，名字是OBJECT_NAME，已经注册过时不再注册
+     *
+     * @throws JMException
+     */
+    public synchronized void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    @Override
+    public long getNewConnections() {
+        return connectionStats.getNewConnections();
+    }
+
+    @Override
+    public long getReusedConnections() {
+        return connectionStats.getReusedConnections();
+    }
+
+    @Override
+    public Histogram.Snapshot getDnsLatency() {
+        return dns.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getConnectLatency() {
+        return connect.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getTlsLatency() {
+        return tls.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getTimeToFirstByte() {
+        return timeToFirstByte.snapshot();
+    }
+
+    /**
+     * 所有下载汇总的分段统计，每个下载自己的分段统计会累加到这里
+     *
+     * @return
+     */
+    @Override
+    public SegmentStats getSegmentStats() {
+        return segmentStats;
+    }
+
+    /**
+     * 按服务器IP的统计，按IP排序
+     *
+     * @return
+     */
+    @Override
+    public Map<String, ServerStats> getServers() {
+        return new TreeMap<>(servers);
+    }
+
+    /**
+     * 清零，方便只统计某一次下载
+     */
+    @Override
+    public void reset() {
+        requests.reset();
+        failedRequests.reset();
+        dns.reset();
+        connect.reset();
+        tls.reset();
+        timeToFirstByte.reset();
+        segmentStats.reset();
+        servers.clear();
+        connectionStats.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadMetrics{requests=" + getRequests() +
+                ", failed=" + getFailedRequests() +
+                ", " + connectionStats +
+                ", dns=" + getDnsLatency() +
+                ", connect=" + getConnectLatency() +
+                ", tls=" + getTlsLatency() +
+                ", ttfb=" + getTimeToFirstByte() +
+                ", " + segmentStats +
+                ", servers=" + getServers().values() +
+                "}";
+    }
+}
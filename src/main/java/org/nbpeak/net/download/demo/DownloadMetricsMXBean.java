@@ -0,0 +1,30 @@
+package org.nbpeak.net.download.demo;
+
+import java.util.Map;
+
+/**
+ * 下载指标的JMX接口，在JConsole、VisualVM里查看。耗时单位都是微秒
+ */
+public interface DownloadMetricsMXBean {
+    long getRequests();
+
+    long getFailedRequests();
+
+    long getNewConnections();
+
+    long getReusedConnections();
+
+    Histogram.Snapshot getDnsLatency();
+
+    Histogram.Snapshot getConnectLatency();
+
+    Histogram.Snapshot getTlsLatency();
+
+    Histogram.Snapshot getTimeToFirstByte();
+
+    SegmentStats getSegmentStats();
+
+    Map<String, DownloadMetrics.ServerStats> getServers();
+
+    void reset();
+}
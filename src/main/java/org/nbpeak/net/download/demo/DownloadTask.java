@@ -43,7 +43,7 @@ public class DownloadTask {
      */
     private void initDownloadInfo(String url) throws IOException {
         log.info("初始化，获取下载文件信息...");
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = HttpClientFactory.get();
         // 创建客户端对象和请求对象，发起head请求
         Request headRequest = new Request.Builder()
                 .head()
@@ -94,7 +94,7 @@ public class DownloadTask {
         downloadInfo.setLocalPath(Paths.get(saveTo, downloadInfo.getFileName()));
 
         // 创建客户端对象和请求对象，发起get请求
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = HttpClientFactory.get();
         Request getRequest = new Request.Builder()
                 .url(downloadInfo.getLocation())
                 .build();
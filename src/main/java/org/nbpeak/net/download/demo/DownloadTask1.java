@@ -2,7 +2,10 @@ package org.nbpeak.net.download.demo;
 
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import org.apache.commons.lang3.StringUtils;
@@ -14,8 +17,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -28,6 +33,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 方案一：任务和线程绑定，即一个线程处理一个任务。任务下载的大小不固定，每个任务结束后合并文件。
@@ -38,11 +44,75 @@ public class DownloadTask1 {
     private boolean supportBreakpoint;
     private DownloadInfo downloadInfo;
     private String eTag;
-    private OkHttpClient client = new OkHttpClient();
-    private static int COUNTER = 0;
+    private String lastModified;
+    private OkHttpClient client = HttpClientFactory.get();
+    // 任务编号计数器，每个下载实例单独计数
+    private final AtomicInteger counter = new AtomicInteger();
     private SpeedStatistician speedStatistician = new SpeedStatistician(speed -> {
-        log.info("速度：" + Utils.byteToUnit(speed) + "/秒");
+        log.info("速度：" + Utils.byteToUnit(speed) + "/秒，" + this.speedStatistician);
+        if (this.connectionController != null) {
+            this.connectionController.onSpeed(speed);
+        }
     });
+    // 是否使用定位写入模式，开启后每个任务直接写目标文件，不再需要临时文件和合并
+    private boolean positionalWrite;
+    private PositionalWriter positionalWriter;
+    // 是否开启分段调度（工作窃取），开启后总是使用定位写入
+    private boolean workStealing;
+    private SegmentScheduler scheduler;
+    private long minSplitSize = 1024 * 1024;
+    // 连接数自动调节，为空时使用固定的线程数
+    private ConnectionController connectionController;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicInteger workerErrors = new AtomicInteger();
+    // 所有下载线程加起来出错超过这个数，线程就不再重试，也不再补充新的下载线程
+    private static final int MAX_WORKER_ERRORS = 32;
+    // 是否开启断点续传，开启后使用分段调度，已写到磁盘的范围记录在目标文件旁边的记录文件里
+    private boolean resume;
+    private ResumeJournal journal;
+    // 每下载这么多数据记录一次断点
+    private static final long CHECKPOINT_SIZE = 16 * 1024 * 1024;
+    private volatile boolean resourceChanged;
+    // 已完成范围的索引，断点续传时和断点记录共用一个
+    private RangeIndex completedIndex;
+    // 下载线程数
+    private int threadCount = 8;
+    // 外部提供的下载线程池，多个下载共用时由DownloadManager传入；为空时每次下载自己创建
+    private ExecutorService executor;
+    // 是否每个下载线程用一个虚拟线程，JDK不支持时还是用普通线程
+    private boolean virtualThreads;
+    private volatile boolean stopped;
+    // HEAD请求（投机模式下是第一个分段的请求）协商出的协议
+    private Protocol protocol;
+    // HTTP/2多路复用模式：用几个连接，每个连接上同时跑几个分段请求，为0时不开启
+    private int http2Connections;
+    private int http2Streams;
+    // 多路复用模式下每个连接一个客户端，分段请求轮流使用
+    private OkHttpClient[] http2Clients;
+    private final AtomicInteger workerCounter = new AtomicInteger();
+    // 在限速器里的登记，为空时不限速
+    private BandwidthLimiter.Download bandwidth;
+    // 这个下载的分段统计，同时累加到所有下载的汇总里
+    private final SegmentStats segmentStats = new SegmentStats(HttpClientFactory.getMetrics().getSegmentStats());
+    // 期望的文件摘要，为空时不校验。调用方没有设置时从HEAD响应头（投机模式下是第一个分段的响应头）里取
+    private ExpectedDigest expectedDigest;
+    // CRC32C由每个分段各自算，下载结束后合并
+    private SegmentCrc segmentCrc;
+    // 其他摘要只能按文件顺序算
+    private OrderedDigest orderedDigest;
+    // 分块校验清单，为空时不按块校验
+    private PieceManifest pieceManifest;
+    private PieceVerifier pieceVerifier;
+    // 按块校验失败后最多修复几轮
+    private static final int MAX_REPAIR_ROUNDS = 3;
+    // 多源下载的镜像，为空时只从主地址下载
+    private MirrorSelector mirrorSelector;
+    // 投机模式：还没有获取文件信息，开始下载时直接请求第一个分段，从它的响应头里获取
+    private boolean speculative;
+    // 投机请求的响应，响应体还没读，由下载第一个分段的线程接着读
+    private Response firstResponse;
+    // 投机请求返回的分段的结束位置，包含在内
+    private long firstEnd = -1;
 
     /**
      * 任务的结果
@@ -73,16 +143,19 @@ public class DownloadTask1 {
         private long startPos;
         private long endPos;
         private final int serialNum;
+        // 当前任务的速度计数
+        private SpeedStatistician.Slot slot;
 
         public TaskInfo(long startPos, long endPos) {
             this.startPos = startPos;
             this.endPos = endPos;
             // 任务编号，每个任务的编号和任务下载的范围对应，在合并文件时按编号的顺序依次将临时文件中的内容写到目标文件去才能保证文件内容正确。
-            this.serialNum = COUNTER++;
+            this.serialNum = counter.getAndIncrement();
         }
 
         @Override
         public Result call() throws Exception {
+            long begin = System.nanoTime();
             String rangeStr = "bytes=";
             if (endPos <= 0) {
                 rangeStr = rangeStr + startPos + "-";
@@ -93,15 +166,25 @@ public class DownloadTask1 {
                     .get()
                     .header("Range", rangeStr) // 这个头时告诉服务器取文件哪个部分的内容，要实现断点续传或分片下载，必须传入这个头
                     .url(downloadInfo.getLocation());
-            if (StringUtils.isNotEmpty(eTag)) {
-                builder.header("ETag", eTag);// 有些服务器的断点续传需要带上ETag
-            }
+            addIfRange(builder);
             Request getRequest = builder.build();
-            Call call = client.newCall(getRequest);
+            Call call = clientFor(serialNum).newCall(getRequest);
+            // 投机模式下服务器不支持Range时，第一个请求返回的就是整个文件，直接接着读
+            Response opened = isSupportBreakpoint() ? null : takeFirstResponse();
             log.info("开始下载：" + rangeStr);
-            try (Response response = call.execute()) {
+            slot = speedStatistician.newSlot(rangeStr);
+            try (Response response = opened != null ? opened : call.execute()) {
                 log.info("获得响应，内容长度：" + response.body().contentLength());
+                if (isSupportBreakpoint() && downloadInfo.getFileSize() > 0) {
+                    checkPartialContent(response);
+                } else if (!response.isSuccessful()) {
+                    // 出错时的响应体不是文件内容，不能写进去
+                    throw new IOException("服务器返回：" + response.code());
+                }
                 InputStream inputStream = response.body().byteStream();
+                if (positionalWriter != null) {
+                    return writeToTarget(inputStream, begin);
+                }
                 Path tmpPath = getTempPath();
                 if (Files.notExists(tmpPath)) {
                     log.info("创建临时目录");
@@ -115,25 +198,371 @@ public class DownloadTask1 {
                 byte[] buf = new byte[8192];
                 int n;
                 long nread = 0L;
+                BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
+                Crc32c crc = newSegmentCrc();
                 while ((n = inputStream.read(buf)) > 0) {
-                    speedStatistician.add(n); // 统计下载速度
+                    checkStopped();
+                    slot.add(n); // 统计下载速度
+                    meter.add(n);
                     outputStream.write(buf, 0, n);
+                    if (crc != null) {
+                        crc.update(buf, 0, n);
+                    }
                     nread += n;
                 }
+                meter.flush();
+                addSegmentCrc(startPos, nread, crc);
+                segmentStats.record(startPos, nread, System.nanoTime() - begin);
                 log.info("结束写入，共：" + Utils.byteToUnit(nread));
                 outputStream.close();
                 return new Result(serialNum, filePath);
             } catch (IOException e) {
                 log.error("下载出错了：", e);
                 throw e;
+            } finally {
+                slot.close();
             }
         }
+
+        /**
+         * 定位写入模式：从startPos开始直接写到目标文件
+         *
+         * @param inputStream
+         * @param begin       发出请求的时间
+         * @return
+         * @throws IOException
+         */
+        private Result writeToTarget(InputStream inputStream, long begin) throws IOException {
+            log.info("开始写入：" + downloadInfo.getLocalPath() + "，位置：" + startPos);
+            byte[] buf = new byte[8192];
+            int n;
+            long nread = 0L;
+            BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
+            Crc32c crc = newSegmentCrc();
+            while ((n = inputStream.read(buf)) > 0) {
+                checkStopped();
+                slot.add(n); // 统计下载速度
+                meter.add(n);
+                positionalWriter.write(startPos + nread, buf, 0, n);
+                updateDigest(crc, startPos + nread, buf, n);
+                nread += n;
+            }
+            meter.flush();
+            addSegmentCrc(startPos, nread, crc);
+            if (pieceVerifier != null) {
+                // 分段按块对齐，下载完马上校验自己的块
+                pieceVerifier.onWritten(startPos, startPos + nread - 1);
+            }
+            segmentStats.record(startPos, nread, System.nanoTime() - begin);
+            log.info("结束写入，共：" + Utils.byteToUnit(nread));
+            return new Result(serialNum, downloadInfo.getLocalPath());
+        }
+    }
+
+    /**
+     * 工作窃取模式的下载线程：不断从调度器取分段下载，调度器没有分段可给时结束。
+     * 分段出错时把没写好的部分还给调度器，线程继续取分段，所有线程的出错次数到了上限才退出
+     */
+    class StealingWorker implements Callable<Long> {
+        private final OkHttpClient client = clientFor(workerCounter.getAndIncrement());
+
+        @Override
+        public Long call() throws Exception {
+            long total = 0;
+            boolean retired = false;
+            SegmentScheduler.Segment segment;
+            try {
+                while (!stopped && !(retired = retire()) && (segment = scheduler.next()) != null) {
+                    try {
+                        total += download(segment);
+                        if (stopped) {
+                            // 停止时没下完的部分留在调度器里，断点记录里也没有，下次接着下载
+                            scheduler.giveBack(segment);
+                        } else {
+                            scheduler.finish(segment);
+                        }
+                    } catch (IOException e) {
+                        // 没下完的部分还给调度器，由其他线程接着下载
+                        log.error("分段 " + segment + " 下载出错了：", e);
+                        scheduler.giveBack(segment);
+                        segmentStats.retry();
+                        workerErrors.incrementAndGet();
+                        if (connectionController != null) {
+                            connectionController.onError();
+                        }
+                        if (resourceChanged || workerErrors.get() >= MAX_WORKER_ERRORS) {
+                            throw e;
+                        }
+                        // 不结束线程，接着从调度器取分段，刚还回去的部分可能没有别的线程来取。多源下载时会换一个下载源
+                    }
+                }
+            } finally {
+                if (!retired) {
+                    activeWorkers.decrementAndGet();
+                }
+            }
+            return total;
+        }
+
+        /**
+         * 连接数自动调节时，线程比期望的多就退出，每次只退一个
+         *
+         * @return
+         */
+        private boolean retire() {
+            if (connectionController == null) {
+                return false;
+            }
+            int active = activeWorkers.get();
+            return active > connectionController.getTarget() && activeWorkers.compareAndSet(active, active - 1);
+        }
+
+        /**
+         * 下载一个分段，分段可能在下载过程中被其他线程切小，读到新的结尾就停止
+         *
+         * @param segment
+         * @return
+         * @throws IOException
+         */
+        private long download(SegmentScheduler.Segment segment) throws IOException {
+            long begin = System.nanoTime();
+            long requestPos = segment.getCurrent();
+            long position = requestPos;
+            // 上次记录断点的位置
+            long checkpointPos = position;
+            String rangeStr = "bytes=" + position + "-" + segment.getEndPos();
+            // 第一个分段用投机请求已经打开的响应，不再发请求
+            Response opened = requestPos == 0 && segment.getEndPos() <= firstEnd ? takeFirstResponse() : null;
+            // 多源下载时每个分段请求都重新选镜像
+            MirrorSelector.Mirror mirror = opened == null && mirrorSelector != null ? mirrorSelector.acquire() : null;
+            Request.Builder builder = new Request.Builder()
+                    .get()
+                    .header("Range", rangeStr)
+                    .url(mirror != null ? mirror.getUrl() : downloadInfo.getLocation());
+            if (mirror != null) {
+                mirror.addIfRange(builder);
+            } else {
+                addIfRange(builder);
+            }
+            log.info("开始下载分段：" + rangeStr + (mirror != null ? "，下载源：" + mirror.getUrl() : "") + (opened != null ? "，接着读投机请求的响应" : ""));
+            SpeedStatistician.Slot slot = speedStatistician.newSlot(rangeStr);
+            Crc32c crc = newSegmentCrc();
+            boolean failed = true;
+            try (Response response = opened != null ? opened : client.newCall(builder.build()).execute()) {
+                if (response.code() == 429 || response.code() == 503) {
+                    if (connectionController != null) {
+                        connectionController.onThrottled();
+                    }
+                    throw new IOException("服务器限流：" + response.code());
+                }
+                if (response.code() == 200 && response.request().header("If-Range") != null) {
+                    if (mirror != null && !mirror.isPrimary()) {
+                        // 镜像上的文件变了，只是不再用这个镜像，其他镜像和主地址接着下载
+                        mirrorSelector.disable(mirror, "文件已经变化");
+                        throw new IOException("下载源上的文件已经变化：" + mirror.getUrl());
+                    }
+                    // If-Range不匹配时服务器返回整个文件，说明文件已经变了，已经下载的内容不能再用
+                    resourceChanged = true;
+                    throw new IOException("服务器上的文件已经变化");
+                }
+                if (response.code() != 206) {
+                    throw new IOException("服务器没有返回分段内容：" + response.code());
+                }
+                InputStream inputStream = response.body().byteStream();
+                byte[] buf = new byte[8192];
+                int n;
+                BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
+                while (!stopped && (n = inputStream.read(buf)) > 0) {
+                    int allowed = segment.claim(n);
+                    slot.add(allowed); // 统计下载速度
+                    meter.add(allowed);
+                    positionalWriter.write(position, buf, 0, allowed);
+                    segment.commit(allowed);
+                    updateDigest(crc, position, buf, allowed);
+                    position += allowed;
+                    if (position - checkpointPos >= CHECKPOINT_SIZE) {
+                        checkpoint(checkpointPos, position - 1);
+                        checkpointPos = position;
+                    }
+                    if (allowed < n) {
+                        // 后面的部分已经被其他线程接手了
+                        break;
+                    }
+                }
+                meter.flush();
+                failed = !stopped && !segment.isFinished();
+            } finally {
+                if (mirror != null) {
+                    mirrorSelector.release(mirror, position - requestPos, System.nanoTime() - begin, failed);
+                }
+                slot.close();
+                // 出错时已经写进去的部分也记下来，下次不用再下载
+                checkpoint(checkpointPos, position - 1);
+                addSegmentCrc(requestPos, position - requestPos, crc);
+                if (pieceVerifier != null) {
+                    pieceVerifier.onWritten(requestPos, position - 1);
+                }
+            }
+            if (stopped) {
+                return position - segment.getStartPos();
+            }
+            if (!segment.isFinished()) {
+                throw new IOException("连接提前结束，分段未下载完：" + segment);
+            }
+            segmentStats.record(requestPos, position - requestPos, System.nanoTime() - begin);
+            log.info("分段下载结束：" + segment);
+            return position - segment.getStartPos();
+        }
+    }
+
+    /**
+     * 第i个下载线程使用的客户端，多路复用模式下按连接轮流分配
+     *
+     * @param i
+     * @return
+     */
+    private OkHttpClient clientFor(int i) {
+        return http2Clients == null ? client : http2Clients[i % http2Clients.length];
+    }
+
+    /**
+     * 要校验CRC32C时，每个分段各自算一个
+     *
+     * @return 不需要时返回null
+     */
+    private Crc32c newSegmentCrc() {
+        return segmentCrc != null ? new Crc32c() : null;
+    }
+
+    private void addSegmentCrc(long start, long length, Crc32c crc) {
+        if (crc != null) {
+            segmentCrc.add(start, length, crc.getValue());
+        }
+    }
+
+    /**
+     * 数据写到目标文件后算摘要：CRC32C累加到分段自己的CRC里，其他摘要交给按文件顺序算的阶段
+     *
+     * @param crc 分段的CRC，不校验CRC32C时为空
+     * @param pos 数据在文件中的位置
+     * @param buf
+     * @param len
+     * @throws IOException
+     */
+    private void updateDigest(Crc32c crc, long pos, byte[] buf, int len) throws IOException {
+        if (crc != null) {
+            crc.update(buf, 0, len);
+        } else if (orderedDigest != null) {
+            orderedDigest.update(pos, buf, 0, len);
+        }
+    }
+
+    /**
+     * 分段请求必须返回分段内容（206）。If-Range不匹配时服务器返回200和整个文件，说明文件已经变了，
+     * 文件开头的数据不能写到这个任务的位置，标记后结束下载
+     *
+     * @param response
+     * @throws IOException
+     */
+    private void checkPartialContent(Response response) throws IOException {
+        if (response.code() == 206) {
+            return;
+        }
+        if (response.code() == 200 && response.request().header("If-Range") != null) {
+            resourceChanged = true;
+            throw new IOException("服务器上的文件已经变化");
+        }
+        throw new IOException("服务器没有返回分段内容：" + response.code());
+    }
+
+    private void checkStopped() throws IOException {
+        if (stopped) {
+            throw new IOException("下载已停止");
+        }
+    }
+
+    /**
+     * 记录已完成的范围。断点续传时先把数据刷到磁盘再写断点记录，保证记录里的范围确实已经写到磁盘上了
+     *
+     * @param start
+     * @param end
+     * @throws IOException
+     */
+    private void checkpoint(long start, long end) throws IOException {
+        if (end < start) {
+            return;
+        }
+        if (journal != null) {
+            positionalWriter.force();
+            journal.record(start, end);
+        } else {
+            completedIndex.add(start, end);
+        }
+    }
+
+    /**
+     * 带上If-Range头，文件没变时服务器返回分段内容（206），变了就返回整个文件（200）。
+     * 弱ETag不能用于If-Range，这时改用Last-Modified
+     *
+     * @param builder
+     */
+    private void addIfRange(Request.Builder builder) {
+        if (StringUtils.isNotEmpty(eTag) && !eTag.startsWith("W/")) {
+            builder.header("If-Range", eTag);
+        } else if (StringUtils.isNotEmpty(lastModified)) {
+            builder.header("If-Range", lastModified);
+        }
     }
 
     public DownloadTask1(String url) throws IOException {
         initDownloadInfo(url);
     }
 
+    /**
+     * 使用指定的客户端，比如只支持HTTP/1.1的客户端，或者本地测试时用H2_PRIOR_KNOWLEDGE直接走明文HTTP/2的客户端
+     *
+     * @param url
+     * @param client
+     * @throws IOException
+     */
+    public DownloadTask1(String url, OkHttpClient client) throws IOException {
+        this.client = client;
+        initDownloadInfo(url);
+    }
+
+    private DownloadTask1(URL url, OkHttpClient client) {
+        this.client = client;
+        this.speculative = true;
+        String path = url.getPath();
+        this.downloadInfo = new DownloadInfo(url, -1, path.substring(path.lastIndexOf('/') + 1));
+    }
+
+    /**
+     * 投机模式：创建时不发HEAD请求，开始下载时直接用GET请求第一个分段，文件大小、ETag、文件名和是否支持断点续传都从它的响应头里取，
+     * 响应体边收边保存，剩下的分段拿到响应头后马上开始下载。每个文件省一次往返，批量下载大量小文件时很明显，
+     * HEAD响应慢或者响应头不准确的服务器也可以用这个模式。开始下载之前还没有文件大小等信息
+     *
+     * @param url
+     * @return
+     * @throws MalformedURLException
+     */
+    public static DownloadTask1 speculative(String url) throws MalformedURLException {
+        return speculative(url, HttpClientFactory.get());
+    }
+
+    /**
+     * 使用指定客户端的投机模式
+     *
+     * @param url
+     * @param client
+     * @return
+     * @throws MalformedURLException
+     * @see #speculative(String)
+     */
+    public static DownloadTask1 speculative(String url, OkHttpClient client) throws MalformedURLException {
+        return new DownloadTask1(new URL(url), client);
+    }
+
     public DownloadInfo getDownloadInfo() {
         return downloadInfo;
     }
@@ -174,6 +603,12 @@ public class DownloadTask1 {
             String acceptRanges = response.header("Accept-Ranges");
             this.supportBreakpoint = "bytes".equalsIgnoreCase(acceptRanges);
             this.eTag = response.header("ETag");
+            this.lastModified = response.header("Last-Modified");
+            this.protocol = response.protocol();
+            // 有CRC32C时优先用它，分段各自算完直接合并
+            this.expectedDigest = ExpectedDigest.fromHeaders(response.headers(), true);
+            log.info("协议：" + protocol);
+            log.info("期望的摘要：" + expectedDigest);
             log.info("是否支持断点续传：" + Utils.yesOrNo(supportBreakpoint));
             log.info("ETag：" + eTag);
 
@@ -182,6 +617,103 @@ public class DownloadTask1 {
         }
     }
 
+    /**
+     * 投机模式下获取文件信息：直接请求第一个分段，响应头到了就填好下载信息，响应体留给下载线程接着读。
+     * 返回206时从Content-Range里取文件大小；服务器不支持Range时返回200，整个文件就用这个连接下载；
+     * 其他情况（比如空文件返回416）关掉响应，改用HEAD请求获取文件信息
+     *
+     * @throws IOException
+     */
+    private void openFirstSegment() throws IOException {
+        speculative = false;
+        URL url = downloadInfo.getLocation();
+        String rangeStr = "bytes=0-" + (minSplitSize - 1);
+        log.info("投机模式，直接请求第一个分段：" + rangeStr);
+        Request request = new Request.Builder()
+                .get()
+                .header("Range", rangeStr)
+                .url(url)
+                .build();
+        Response response = client.newCall(request).execute();
+        log.info("响应头================\n" + response.headers().toString());
+        long length = -1;
+        long end = -1;
+        String contentRange = response.header("Content-Range");
+        if (response.code() == 206 && contentRange != null && contentRange.startsWith("bytes 0-")) {
+            // Content-Range: bytes 0-结束位置/文件大小，不知道大小时是*
+            int slash = contentRange.lastIndexOf('/');
+            if (slash > 0) {
+                end = NumberUtils.toLong(contentRange.substring("bytes 0-".length(), slash).trim(), -1);
+                length = NumberUtils.toLong(contentRange.substring(slash + 1).trim(), -1);
+            }
+        }
+        Headers digestHeaders = response.headers();
+        if (length > 0 && end >= 0) {
+            this.chunked = false;
+            this.supportBreakpoint = true;
+            this.firstEnd = Math.min(end, length - 1);
+            // Content-MD5是这一段内容的摘要，不是整个文件的
+            digestHeaders = digestHeaders.newBuilder().removeAll("Content-MD5").build();
+        } else if (response.code() == 200) {
+            // 服务器不支持Range，返回的就是整个文件
+            this.chunked = "chunked".equals(response.header("Transfer-Encoding"));
+            if (!this.chunked) {
+                length = NumberUtils.toLong(response.header("Content-Length"), -1);
+            }
+            this.supportBreakpoint = false;
+            this.firstEnd = -1;
+        } else {
+            response.close();
+            log.info("投机请求没有拿到文件信息，响应码：" + response.code() + "，改用HEAD请求");
+            ExpectedDigest given = expectedDigest;
+            initDownloadInfo(url.toString());
+            if (given != null) {
+                expectedDigest = given;
+            }
+            return;
+        }
+        this.eTag = response.header("ETag");
+        this.lastModified = response.header("Last-Modified");
+        this.protocol = response.protocol();
+        if (expectedDigest == null) {
+            // 调用方给过摘要时以调用方的为准
+            this.expectedDigest = ExpectedDigest.fromHeaders(digestHeaders, true);
+        }
+        if (mirrorSelector != null) {
+            mirrorSelector.setPrimaryValidators(eTag, lastModified);
+        }
+        downloadInfo.setFileName(getFileName(response));
+        downloadInfo.setFileSize(length);
+        log.info("获取到文件名：" + downloadInfo.getFileName());
+        log.info("文件大小：" + length);
+        log.info("协议：" + protocol);
+        log.info("期望的摘要：" + expectedDigest);
+        log.info("是否支持断点续传：" + Utils.yesOrNo(supportBreakpoint));
+        log.info("ETag：" + eTag);
+        firstResponse = response;
+    }
+
+    /**
+     * 取出投机请求的响应，只有一个线程能取到
+     *
+     * @return 没有或者已经被取走时返回null
+     */
+    private synchronized Response takeFirstResponse() {
+        Response response = firstResponse;
+        firstResponse = null;
+        return response;
+    }
+
+    /**
+     * 投机请求的响应没用上时关掉，释放连接
+     */
+    private void closeFirstResponse() {
+        Response response = takeFirstResponse();
+        if (response != null) {
+            response.close();
+        }
+    }
+
     /**
      * 开始下载
      *
@@ -195,15 +727,121 @@ public class DownloadTask1 {
             log.info("下载目录不存在，创建目录：" + dirPath.toAbsolutePath());
             Files.createDirectories(dirPath);
         }
-        downloadInfo.setLocalPath(Paths.get(saveTo, downloadInfo.getFileName()));
+        if (speculative) {
+            // 文件名也要等响应头到了才知道
+            openFirstSegment();
+        }
+        boolean finished = false;
+        boolean useMirrors = false;
+        try {
+            downloadInfo.setLocalPath(Paths.get(saveTo, downloadInfo.getFileName()));
+            downloadInfo.setStatus(DownloadInfo.Status.RUNNING);
+            prepareDigest();
+            pieceVerifier = null;
+            if (pieceManifest != null) {
+                if (!pieceManifest.matches(downloadInfo.getFileSize())) {
+                    throw new IOException("校验清单和文件大小对不上：" + pieceManifest + "，文件大小：" + downloadInfo.getFileSize());
+                }
+                pieceVerifier = new PieceVerifier(pieceManifest, downloadInfo.getFileSize());
+            }
 
-        // 开8个线程
-        int threadCount = 8;
+            int threadCount = this.threadCount;
+            http2Clients = null;
+            if (http2Connections > 0) {
+                if (isHttp2()) {
+                    threadCount = prepareHttp2Clients();
+                } else {
+                    log.info("服务器不支持HTTP/2，使用普通模式");
+                }
+            }
+            if (mirrorSelector != null && isSupportBreakpoint() && downloadInfo.getFileSize() > 0) {
+                // 多源下载靠工作窃取分配分段：快的镜像下完自己的分段后，去切慢的镜像剩下的部分
+                useMirrors = mirrorSelector.validate(client, downloadInfo.getFileSize()) > 1;
+            }
+            // 投机请求的分段已经在传输，交给工作窃取模式的调度器，其他线程马上开始下载剩下的部分
+            boolean speculating = firstResponse != null;
+            // 连接数自动调节要靠分段调度随时增减线程，所以也走分段调度模式
+            boolean autoConnections = connectionController != null;
+            if ((workStealing || resume || useMirrors || speculating || autoConnections) && isSupportBreakpoint() && downloadInfo.getFileSize() > 0) {
+                finished = startStealing(threadCount);
+            } else {
+                if (autoConnections) {
+                    log.info("服务器不支持断点续传或者没有文件大小，连接数自动调节不生效");
+                }
+                finished = startTasks(threadCount);
+            }
+        } finally {
+            closeFirstResponse();
+            // 没下载完也不是被停止的，说明下载出错了
+            downloadInfo.setStatus(stopped ? DownloadInfo.Status.STOPPED : finished ? DownloadInfo.Status.FINISHED : DownloadInfo.Status.FAILED);
+            if (bandwidth != null) {
+                // 下载结束后把带宽让给其他下载
+                bandwidth.close();
+            }
+            log.info("连接统计：" + HttpClientFactory.getStats());
+            log.info("分段统计：" + segmentStats);
+            if (useMirrors) {
+                log.info("下载源统计：" + mirrorSelector);
+            }
+        }
+    }
+
+    /**
+     * 多路复用模式：准备好几个各自带连接池的客户端，每个客户端只会建一个HTTP/2连接，所有分段请求作为流分摊到这几个连接上。
+     * OkHttp 3的HTTP/2连接默认已经把流和连接的接收窗口设成16MB，大分段不会被流控拖慢，所以这里不用再调窗口大小
+     *
+     * @return 同时下载的分段数
+     */
+    private int prepareHttp2Clients() throws IOException {
+        http2Clients = new OkHttpClient[http2Connections];
+        http2Clients[0] = client;
+        for (int i = 1; i < http2Connections; i++) {
+            // OkHttp同一个连接池里对同一个服务器只用一个HTTP/2连接，要多个连接就要用不同的连接池
+            http2Clients[i] = client.newBuilder()
+                    .connectionPool(new ConnectionPool(1, 5, TimeUnit.MINUTES))
+                    .build();
+        }
+        // 先用HEAD请求把连接建好，否则一批流同时发出时每个请求都会去新建连接，多余的连接建好后又被关掉
+        for (OkHttpClient http2Client : http2Clients) {
+            Request headRequest = new Request.Builder().head().url(downloadInfo.getLocation()).build();
+            try (Response response = http2Client.newCall(headRequest).execute()) {
+                log.debug("预先建立连接：" + response.protocol());
+            }
+        }
+        log.info("HTTP/2多路复用：" + http2Connections + " 个连接，每个连接 " + http2Streams + " 个流");
+        return http2Connections * http2Streams;
+    }
+
+    /**
+     * 停止下载，正在下载的线程读完当前这一块数据后退出。断点续传模式下已经写好的部分会记录下来，下次接着下载
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * 按线程数把文件分成固定的几个任务，每个任务一个线程
+     *
+     * @param threadCount
+     * @return 是否下载完成
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private boolean startTasks(int threadCount) throws IOException, InterruptedException {
         List<TaskInfo> taskInfoList = new ArrayList<>();
+        resourceChanged = false;
+        // 按块校验时要能按位置重新写出错的块，所以必须定位写入
+        boolean positionalWrite = this.positionalWrite || pieceVerifier != null;
         if (isSupportBreakpoint() && downloadInfo.getFileSize() > 0) {
             // 只有支持断点续传，并且获取到了文件大小才能将文件分成多个任务运行。
             // 下面是按线程数分解任务，每个线程的任务大小都差不多
             long total = downloadInfo.getFileSize(), taskSize = total / threadCount;
+            if (pieceVerifier != null) {
+                // 任务按块对齐，每个任务下载完就能校验自己的块；块比较大时任务数会少于线程数
+                long pieceLength = pieceManifest.getPieceLength();
+                taskSize = Math.max(1, (taskSize + pieceLength - 1) / pieceLength) * pieceLength;
+                threadCount = (int) Math.min(threadCount, (total + taskSize - 1) / taskSize);
+            }
             for (int i = 0; i < threadCount; i++) {
                 long startPos = i * taskSize;
                 long endPos = startPos + taskSize - 1;
@@ -216,8 +854,20 @@ public class DownloadTask1 {
             // 不支持断点续传，或者没获取到文件大小，就只有一个任务
             taskInfoList.add(new TaskInfo(0, downloadInfo.getFileSize()));
         }
+        if (positionalWrite) {
+            // 定位写入模式先把目标文件的大小一次分配好，各个任务再写到各自的位置
+            positionalWriter = new PositionalWriter(downloadInfo.getLocalPath());
+            positionalWriter.preallocate(downloadInfo.getFileSize());
+            if (orderedDigest != null) {
+                orderedDigest.setReadBack(positionalWriter.getChannel());
+            }
+            if (pieceVerifier != null) {
+                pieceVerifier.setFile(positionalWriter.getChannel());
+            }
+        }
         // 开始执行任务
-        ExecutorService threadPool = Executors.newFixedThreadPool(taskInfoList.size());
+        ExecutorService threadPool = executor != null ? executor : newWorkerPool(taskInfoList.size());
+        speedStatistician.setExpectedBytes(downloadInfo.getFileSize());
         speedStatistician.start();
 
         Instant start = Instant.now();
@@ -230,19 +880,328 @@ public class DownloadTask1 {
             Instant end = Instant.now();
             Duration time = Duration.between(start, end);
             log.info("下载结束，耗时：" + time.getSeconds() + " 秒");
-            threadPool.shutdown();
-            // 所有下载任务都结束后，开始将临时文件合并到下载目录
-            merge(Optional.of(resultList));
-            Files.delete(getTempPath());
+            if (!positionalWrite) {
+                // 所有下载任务都结束后，开始将临时文件合并到下载目录
+                merge(Optional.of(resultList));
+                Files.delete(getTempPath());
+            }
+            verifyDigest(repairPieces());
+            downloadInfo.setSaveSize(downloadInfo.getFileSize());
+            return true;
         } catch (ExecutionException e) {
             log.error("出现异常：", e);
+            if (resourceChanged) {
+                log.error("服务器上的文件已经变化，下载已中止");
+            }
+            return false;
         } finally {
+            if (threadPool != executor) {
+                threadPool.shutdown();
+            }
             speedStatistician.stop();
+            closePositionalWriter();
+        }
+    }
+
+    /**
+     * 工作窃取模式：先按线程数平分，某个线程下载完自己的分段后，去切剩余最多的分段的后一半
+     *
+     * @param threadCount
+     * @return 是否下载完成
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private boolean startStealing(int threadCount) throws IOException, InterruptedException {
+        if (connectionController != null) {
+            // 自动调节时从最小连接数开始，后加入的连接通过切分分段拿到任务
+            threadCount = connectionController.getMinConnections();
+        }
+        long total = downloadInfo.getFileSize();
+        scheduler = new SegmentScheduler(minSplitSize);
+        resourceChanged = false;
+        if (resume) {
+            // 断点续传按断点记录安排分段，投机请求的内容不一定用得上，关掉释放连接
+            closeFirstResponse();
+            // 只下载断点记录里没完成的范围，按线程数把剩余的大小大致平分
+            journal = ResumeJournal.open(downloadInfo.getLocalPath(), total, eTag, lastModified);
+            completedIndex = journal.getIndex();
+            downloadInfo.setSaveSize(journal.getCompletedSize());
+            long pieceSize = Math.max(minSplitSize, (total - journal.getCompletedSize()) / threadCount);
+            for (long[] range : journal.getMissing()) {
+                for (long startPos = range[0]; startPos <= range[1]; startPos += pieceSize) {
+                    scheduler.add(startPos, Math.min(startPos + pieceSize - 1, range[1]));
+                }
+            }
+            if (journal.isComplete()) {
+                log.info("文件已经下载完成：" + downloadInfo.getLocalPath());
+                journal.delete();
+                journal = null;
+                return true;
+            }
+        } else {
+            completedIndex = new RangeIndex();
+            long base = 0;
+            int parts = threadCount;
+            if (firstResponse != null) {
+                // 投机请求的分段排在最前面，最先取分段的线程接着读它的响应，剩下的部分再按其他线程数平分
+                scheduler.add(0, firstEnd);
+                base = firstEnd + 1;
+                parts = Math.max(1, threadCount - 1);
+                if (base >= total) {
+                    // 文件不比第一个分段大，一个连接就下载完了
+                    threadCount = 1;
+                }
+            }
+            long taskSize = (total - base) / parts;
+            for (int i = 0; i < parts; i++) {
+                long startPos = base + i * taskSize;
+                long endPos = i == parts - 1 ? total - 1 : startPos + taskSize - 1;
+                scheduler.add(startPos, endPos);
+            }
+        }
+        positionalWriter = new PositionalWriter(downloadInfo.getLocalPath());
+        positionalWriter.preallocate(total);
+        if (orderedDigest != null) {
+            orderedDigest.setReadBack(positionalWriter.getChannel());
+            // 断点续传时以前下载好的部分不会再交过来，到时从文件读回来算
+            for (long[] range : completedIndex.ranges()) {
+                orderedDigest.addWritten(range[0], range[1]);
+            }
+        }
+        if (pieceVerifier != null) {
+            pieceVerifier.setFile(positionalWriter.getChannel());
+            // 断点续传时先校验以前下载好的部分，上次异常退出时没写好的块会在最后重新下载
+            for (long[] range : completedIndex.ranges()) {
+                pieceVerifier.onWritten(range[0], range[1]);
+            }
+        }
+
+        int maxThreads = connectionController != null ? connectionController.getMaxConnections() : threadCount;
+        ExecutorService threadPool = executor != null ? executor : newWorkerPool(maxThreads);
+        activeWorkers.set(0);
+        workerErrors.set(0);
+        // 断点续传时只有没完成的部分需要下载
+        speedStatistician.setExpectedBytes(total - completedIndex.getCoveredSize());
+        speedStatistician.start();
+        Instant start = Instant.now();
+        try {
+            if (connectionController != null) {
+                runAdaptive(threadPool);
+            } else {
+                List<StealingWorker> workers = new ArrayList<>();
+                for (int i = 0; i < threadCount; i++) {
+                    workers.add(new StealingWorker());
+                }
+                activeWorkers.set(threadCount);
+                for (Future<Long> future : threadPool.invokeAll(workers)) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        log.error("出现异常：", e);
+                    }
+                }
+            }
+            Duration time = Duration.between(start, Instant.now());
+            downloadInfo.setSaveSize(completedIndex.getCoveredSize());
+            if (stopped) {
+                log.info("下载已停止，已完成：" + Utils.byteToUnit(completedIndex.getCoveredSize()));
+            } else if (completedIndex.getCoveredSize() < total) {
+                log.error("下载未完成，耗时：" + time.getSeconds() + " 秒，缺失：" + completedIndex.nextMissing(0, total)[0] + "起");
+            } else {
+                log.info("下载结束，耗时：" + time.getSeconds() + " 秒");
+                verifyDigest(repairPieces());
+            }
+            return completedIndex.getCoveredSize() == total;
+        } finally {
+            if (threadPool != executor) {
+                threadPool.shutdown();
+            }
+            speedStatistician.stop();
+            closePositionalWriter();
+            closeJournal();
+        }
+    }
+
+    /**
+     * 创建下载线程池：虚拟线程模式下每个任务一个虚拟线程，否则是固定数量的普通线程
+     *
+     * @param threads 普通线程模式的线程数
+     * @return
+     */
+    private ExecutorService newWorkerPool(int threads) {
+        if (virtualThreads) {
+            ExecutorService pool = VirtualThreads.newPerTaskExecutor();
+            if (pool != null) {
+                return pool;
+            }
+            log.info("当前JDK不支持虚拟线程，使用普通线程");
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * 连接数自动调节：按控制器给出的连接数补充下载线程，多出来的线程在下载完当前分段后自己退出
+     *
+     * @param threadPool
+     * @throws InterruptedException
+     */
+    private void runAdaptive(ExecutorService threadPool) throws InterruptedException {
+        while (true) {
+            boolean canSpawn = !stopped && scheduler.hasRemaining() && workerErrors.get() < MAX_WORKER_ERRORS;
+            while (canSpawn && activeWorkers.get() < connectionController.getTarget()) {
+                activeWorkers.incrementAndGet();
+                threadPool.submit(new StealingWorker());
+            }
+            if (activeWorkers.get() == 0 && !canSpawn) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * 按期望的摘要准备下载过程中的计算
+     */
+    private void prepareDigest() {
+        segmentCrc = null;
+        orderedDigest = null;
+        if (expectedDigest == null) {
+            return;
+        }
+        if (expectedDigest.isCrc32c()) {
+            segmentCrc = new SegmentCrc();
+        } else {
+            orderedDigest = new OrderedDigest(expectedDigest);
+        }
+    }
+
+    /**
+     * 下载结束时校验摘要。摘要在下载过程中已经算好，这里只需要合并分段的CRC，或者把乱序到达的最后一点算完，不用再读一遍文件
+     *
+     * @param repaired 是否按块修复过，修复过时下载过程中算进去的是出错的数据，只能从文件重新算
+     * @throws IOException 校验失败
+     */
+    private void verifyDigest(boolean repaired) throws IOException {
+        if (expectedDigest == null) {
+            return;
+        }
+        long size = downloadInfo.getFileSize();
+        FileChannel file = positionalWriter != null ? positionalWriter.getChannel() : null;
+        byte[] actual;
+        if (repaired) {
+            OrderedDigest digest = new OrderedDigest(expectedDigest);
+            digest.setReadBack(file);
+            digest.addWritten(0, size - 1);
+            actual = digest.finish(size);
+        } else {
+            actual = segmentCrc != null ? segmentCrc.finish(file, size) : orderedDigest.finish(size);
+        }
+        expectedDigest.verify(actual);
+        log.info("文件校验通过：" + expectedDigest);
+    }
+
+    /**
+     * 重新下载按块校验失败的部分，写入后再次校验，最多修复MAX_REPAIR_ROUNDS轮
+     *
+     * @return 是否修复过
+     * @throws IOException 修复后仍然校验失败
+     */
+    private boolean repairPieces() throws IOException {
+        if (pieceVerifier == null) {
+            return false;
+        }
+        boolean repaired = false;
+        for (int round = 1; ; round++) {
+            List<long[]> ranges = pieceVerifier.takeBadRanges();
+            if (ranges.isEmpty()) {
+                break;
+            }
+            if (round > MAX_REPAIR_ROUNDS) {
+                throw new IOException("按块校验失败，修复 " + MAX_REPAIR_ROUNDS + " 轮后仍有 " + ranges.size() + " 处不正确");
+            }
+            long bytes = ranges.stream().mapToLong(range -> range[1] - range[0] + 1).sum();
+            log.warn("第 " + round + " 轮修复：" + ranges.size() + " 处，共 " + Utils.byteToUnit(bytes));
+            for (long[] range : ranges) {
+                fetchRange(range[0], range[1]);
+                pieceVerifier.onWritten(range[0], range[1]);
+            }
+            repaired = true;
+        }
+        if (!pieceVerifier.isAllPassed()) {
+            throw new IOException("还有没校验的块：" + pieceVerifier);
+        }
+        log.info("按块校验通过：" + pieceVerifier);
+        return repaired;
+    }
+
+    /**
+     * 重新下载一个范围，直接写到目标文件
+     *
+     * @param start
+     * @param end   包含在内
+     * @throws IOException
+     */
+    private void fetchRange(long start, long end) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .get()
+                .header("Range", "bytes=" + start + "-" + end)
+                .url(downloadInfo.getLocation());
+        addIfRange(builder);
+        segmentStats.retry();
+        try (Response response = client.newCall(builder.build()).execute()) {
+            if (response.code() != 206) {
+                throw new IOException("修复时服务器没有返回分段内容：" + response.code());
+            }
+            InputStream inputStream = response.body().byteStream();
+            byte[] buf = new byte[8192];
+            int n;
+            long position = start;
+            BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
+            while (position <= end && (n = inputStream.read(buf, 0, (int) Math.min(buf.length, end - position + 1))) > 0) {
+                meter.add(n);
+                positionalWriter.write(position, buf, 0, n);
+                position += n;
+            }
+            meter.flush();
+            if (position <= end) {
+                throw new IOException("修复时连接提前结束：" + position + "/" + end);
+            }
+        }
+    }
+
+    /**
+     * 下载完成或者服务器上的文件变了就删除断点记录，否则保留下次接着下载
+     *
+     * @throws IOException
+     */
+    private void closeJournal() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        if (resourceChanged) {
+            log.error("服务器上的文件已经变化，删除断点记录，下次重新下载");
+            journal.delete();
+        } else if (journal.isComplete()) {
+            journal.delete();
+        } else {
+            downloadInfo.setSaveSize(journal.getCompletedSize());
+            log.info("已保存断点记录，已完成：" + Utils.byteToUnit(journal.getCompletedSize()));
+            journal.compact();
+        }
+        journal = null;
+    }
+
+    private void closePositionalWriter() throws IOException {
+        if (positionalWriter != null) {
+            positionalWriter.close();
+            positionalWriter = null;
         }
     }
 
     private void merge(Optional<List<Result>> resultList) throws IOException {
         log.info("开始合并文件");
+        // 合并时按顺序读每个临时文件，不校验CRC32C时顺便算摘要
+        long[] mergedPos = {0};
         // 参考的Files.copy复制文件的方法，一行代码搞定文件不存在或已存在的问题。
         try (OutputStream outputStream = getProvider(Optional.of(downloadInfo.getLocalPath())).newOutputStream(downloadInfo.getLocalPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
             resultList.get() // 从Optional里面获取list
@@ -256,6 +1215,10 @@ public class DownloadTask1 {
                             int len;
                             while ((len = inputStream.read(buf)) > 0) {
                                 outputStream.write(buf, 0, len);
+                                if (orderedDigest != null) {
+                                    orderedDigest.update(mergedPos[0], buf, 0, len);
+                                }
+                                mergedPos[0] += len;
                             }
                         } catch (IOException e) {
                             e.printStackTrace();
@@ -328,4 +1291,215 @@ public class DownloadTask1 {
     public boolean isSupportBreakpoint() {
         return supportBreakpoint;
     }
+
+    public boolean isPositionalWrite() {
+        return positionalWrite;
+    }
+
+    /**
+     * 设置是否使用定位写入模式
+     *
+     * @param positionalWrite true：预分配目标文件，每个任务直接写到自己的偏移量；false：写临时文件，最后合并
+     */
+    public void setPositionalWrite(boolean positionalWrite) {
+        this.positionalWrite = positionalWrite;
+    }
+
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    /**
+     * 设置是否开启分段调度，开启后空闲的线程会切分剩余最多的分段，帮慢的连接下载后一半
+     *
+     * @param workStealing
+     */
+    public void setWorkStealing(boolean workStealing) {
+        this.workStealing = workStealing;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * 设置是否开启断点续传，开启后使用分段调度模式，JVM重启后只下载没完成的范围
+     *
+     * @param resume
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public ConnectionController getConnectionController() {
+        return connectionController;
+    }
+
+    /**
+     * 开启连接数自动调节，开启后使用分段调度模式。服务器不支持断点续传或者没有文件大小时不生效
+     *
+     * @param minConnections 最小连接数
+     * @param maxConnections 最大连接数
+     */
+    public void setAutoConnections(int minConnections, int maxConnections) {
+        this.connectionController = new ConnectionController(minConnections, maxConnections);
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * 设置下载线程数，默认8个。开启连接数自动调节时不使用这个值
+     *
+     * @param threadCount
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * 使用外部的线程池下载，多个下载共用一个线程池时线程总数就是所有下载的连接总数。
+     * 外部线程池由调用方关闭
+     *
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public boolean isHttp2() {
+        return protocol == Protocol.HTTP_2 || protocol == Protocol.H2_PRIOR_KNOWLEDGE;
+    }
+
+    /**
+     * 开启HTTP/2多路复用模式：服务器支持HTTP/2时，所有分段请求作为流分摊到少数几个连接上，
+     * 同时下载的分段数是connections * streamsPerConnection；服务器不支持时按普通模式下载
+     *
+     * @param connections          连接数
+     * @param streamsPerConnection 每个连接上同时下载的分段数
+     */
+    public void setHttp2(int connections, int streamsPerConnection) {
+        if (connections < 0 || (connections > 0 && streamsPerConnection < 1)) {
+            throw new IllegalArgumentException("连接数或流数不正确：" + connections + "，" + streamsPerConnection);
+        }
+        this.http2Connections = connections;
+        this.http2Streams = streamsPerConnection;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * 设置是否使用虚拟线程（JDK 21及以上），每个分段一个虚拟线程，分段很多时比普通线程省资源。
+     * 通过setExecutor传入了外部线程池时不生效
+     *
+     * @param virtualThreads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * 添加镜像地址，同一个文件从多个地址同时下载。开始下载前先检查镜像上的文件大小和ETag是否和主地址一致，
+     * 下载时每个分段按各镜像测得的速度和出错率选镜像，会自动使用工作窃取模式。镜像多时可以适当调大线程数
+     *
+     * @param url
+     * @throws MalformedURLException
+     */
+    public void addMirror(String url) throws MalformedURLException {
+        if (mirrorSelector == null) {
+            mirrorSelector = new MirrorSelector(downloadInfo.getLocation(), eTag, lastModified);
+        }
+        mirrorSelector.add(new URL(url));
+    }
+
+    public MirrorSelector getMirrorSelector() {
+        return mirrorSelector;
+    }
+
+    public PieceManifest getPieceManifest() {
+        return pieceManifest;
+    }
+
+    /**
+     * 设置分块校验清单，每块下载完马上校验，下载结束后只重新下载校验失败的块。设置后普通模式也使用定位写入，任务按块对齐
+     *
+     * @param pieceManifest 为空时不按块校验
+     */
+    public void setPieceManifest(PieceManifest pieceManifest) {
+        this.pieceManifest = pieceManifest;
+    }
+
+    public ExpectedDigest getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    /**
+     * 设置期望的文件摘要，下载过程中边收数据边算，下载结束时校验，不一致时start抛出异常。
+     * 默认从HEAD响应的Digest、Content-MD5、x-goog-hash等头里取
+     *
+     * @param expectedDigest 为空时不校验
+     */
+    public void setExpectedDigest(ExpectedDigest expectedDigest) {
+        this.expectedDigest = expectedDigest;
+    }
+
+    /**
+     * 这个下载的分段统计：分段耗时、速度、重试次数和最慢的分段
+     *
+     * @return
+     */
+    public SegmentStats getSegmentStats() {
+        return segmentStats;
+    }
+
+    /**
+     * 速度统计：每秒的速度、平滑速度、剩余时间和每个分段的速度
+     *
+     * @return
+     */
+    public SpeedStatistician getSpeedStatistician() {
+        return speedStatistician;
+    }
+
+    public BandwidthLimiter.Download getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * 加入限速器，和其他下载按权重分享全局和主机的限速。运行中可以通过getBandwidth修改权重和限速
+     *
+     * @param limiter
+     * @param weight  权重，至少为1
+     * @param rate    这个下载自己的限速，字节/秒，0表示不限速
+     */
+    public void setBandwidthLimiter(BandwidthLimiter limiter, int weight, long rate) {
+        if (bandwidth != null) {
+            bandwidth.close();
+        }
+        bandwidth = limiter.register(downloadInfo.getLocation().getHost(), weight, rate);
+    }
+
+    public long getMinSplitSize() {
+        return minSplitSize;
+    }
+
+    /**
+     * 设置分段的最小切分大小，剩余不到两倍这个大小的分段不再切分
+     *
+     * @param minSplitSize
+     */
+    public void setMinSplitSize(long minSplitSize) {
+        this.minSplitSize = minSplitSize;
+    }
 }
@@ -27,7 +27,17 @@ import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -39,12 +49,40 @@ public class DownloadTask2 {
     private boolean supportBreakpoint;
     private DownloadInfo downloadInfo;
     private String eTag;
-    private OkHttpClient client = new OkHttpClient();
-    private static int COUNTER = 0;
+    // 分段请求发现服务器上的文件已经变化，其他线程不再取新任务
+    private volatile boolean resourceChanged;
+    private OkHttpClient client = HttpClientFactory.get();
+    // 任务编号计数器，每个下载实例单独计数
+    private final AtomicInteger counter = new AtomicInteger();
     private final static int THREAD_COUNT = 8;
     private SpeedStatistician speedStatistician = new SpeedStatistician(speed -> {
-        log.info("速度：" + Utils.byteToUnit(speed) + "/秒");
+        log.info("速度：" + Utils.byteToUnit(speed) + "/秒，" + this.speedStatistician);
+        if (this.connectionController != null) {
+            this.connectionController.onSpeed(speed);
+        }
     });
+    // 连接数自动调节，为空时固定THREAD_COUNT个连接
+    private ConnectionController connectionController;
+    // 正在运行的工作循环数和所有循环的出错次数
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicInteger taskErrors = new AtomicInteger();
+    private static final int MAX_TASK_ERRORS = 32;
+    // 连接数自动调节时出错的任务不马上重试，到这个时间才补充工作循环，连续出错时等待时间加倍
+    private volatile long retryAt;
+    private final AtomicInteger errorStreak = new AtomicInteger();
+    private static final long MAX_RETRY_DELAY = 5000;
+    // 是否使用定位写入模式，开启后每个任务直接写目标文件，不再按线程绑定临时文件
+    private boolean positionalWrite;
+    private PositionalWriter positionalWriter;
+    // 是否自适应分段大小，开启后不再使用固定的2MB阈值
+    private boolean adaptiveSegments;
+    private SegmentSizer segmentSizer;
+    // 下载用的线程池，网络读取和合并文件分别在各自的线程池里执行
+    private DownloadExecutors executors = DownloadExecutors.getDefault();
+    // 在限速器里的登记，为空时不限速
+    private BandwidthLimiter.Download bandwidth;
+    // 这个下载的分段统计，同时累加到所有下载的汇总里
+    private final SegmentStats segmentStats = new SegmentStats(HttpClientFactory.getMetrics().getSegmentStats());
 
     class Result {
         private int num;
@@ -84,11 +122,23 @@ public class DownloadTask2 {
         private long startPos;
         private long endPos;
         private final int serialNum;
+        // 下载情况，自适应分段时用来调整后面的分段大小
+        private long bytes;
+        private long headerMillis;
 
         public TaskInfo(long startPos, long endPos) {
             this.startPos = startPos;
             this.endPos = endPos;
-            this.serialNum = COUNTER++;
+            this.serialNum = counter.getAndIncrement();
+        }
+
+        /**
+         * 定位写入模式下出错后还没写到文件的部分，作为新任务重新下载
+         *
+         * @return
+         */
+        public TaskInfo remainder() {
+            return new TaskInfo(startPos + bytes, endPos);
         }
 
         @Override
@@ -103,15 +153,23 @@ public class DownloadTask2 {
                     .get()
                     .header("Range", rangeStr)
                     .url(downloadInfo.getLocation());
-            if (StringUtils.isNotEmpty(eTag)) {
-                builder.header("ETag", eTag);
+            if (StringUtils.isNotEmpty(eTag) && !eTag.startsWith("W/")) {
+                builder.header("If-Range", eTag);// 文件没变才返回分段内容，弱ETag不能用于If-Range
             }
             Request getRequest = builder.build();
             Call call = client.newCall(getRequest);
             log.info("任务：" + serialNum + "，开始下载：" + rangeStr);
+            long begin = System.currentTimeMillis();
             try (Response response = call.execute()) {
+                headerMillis = System.currentTimeMillis() - begin;
                 log.info("任务：" + serialNum + "，获得响应，内容长度：" + response.body().contentLength());
+                if (isSupportBreakpoint() && downloadInfo.getFileSize() > 0) {
+                    checkPartialContent(response);
+                }
                 InputStream inputStream = response.body().byteStream();
+                if (positionalWriter != null) {
+                    return writeToTarget(inputStream);
+                }
                 Path tmpPath = getTempPath();
                 if (Files.notExists(tmpPath)) {
                     log.info("创建临时目录");
@@ -124,11 +182,15 @@ public class DownloadTask2 {
                 byte[] buf = new byte[8192];
                 int n;
                 long nread = 0L;
+                BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
                 while ((n = inputStream.read(buf)) > 0) {
                     speedStatistician.add(n);
+                    meter.add(n);
                     outputStream.write(buf, 0, n);
                     nread += n;
                 }
+                meter.flush();
+                bytes = nread;
                 log.info("任务：" + serialNum + "，结束写入，共：" + nread);
                 outputStream.close();
                 return new Result(fileNo, filePath);
@@ -137,6 +199,57 @@ public class DownloadTask2 {
                 throw e;
             }
         }
+
+        /**
+         * 定位写入模式：从startPos开始直接写到目标文件，写入位置和哪个线程执行任务无关
+         *
+         * @param inputStream
+         * @return
+         * @throws IOException
+         */
+        private Result writeToTarget(InputStream inputStream) throws IOException {
+            byte[] buf = new byte[8192];
+            int n;
+            long nread = 0L;
+            BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
+            while ((n = inputStream.read(buf)) > 0) {
+                speedStatistician.add(n);
+                meter.add(n);
+                positionalWriter.write(startPos + nread, buf, 0, n);
+                nread += n;
+                bytes = nread;
+            }
+            meter.flush();
+            if (endPos > 0 && startPos + nread <= endPos) {
+                throw new IOException("连接提前结束，任务：" + serialNum + "，已读到：" + (startPos + nread - 1) + "/" + endPos);
+            }
+            log.info("任务：" + serialNum + "，结束写入，位置：" + startPos + "，共：" + nread);
+            return new Result(serialNum, downloadInfo.getLocalPath());
+        }
+    }
+
+    /**
+     * 分段请求必须返回分段内容（206）。If-Range不匹配时服务器返回200和整个文件，说明文件已经变了，
+     * 文件开头的数据不能写到这个任务的位置，标记后其他线程不再取新任务
+     *
+     * @param response
+     * @throws IOException
+     */
+    private void checkPartialContent(Response response) throws IOException {
+        if (response.code() == 206) {
+            return;
+        }
+        if (response.code() == 429 || response.code() == 503) {
+            if (connectionController != null) {
+                connectionController.onThrottled();
+            }
+            throw new IOException("服务器限流：" + response.code());
+        }
+        if (response.code() == 200 && response.request().header("If-Range") != null) {
+            resourceChanged = true;
+            throw new IOException("服务器上的文件已经变化");
+        }
+        throw new IOException("服务器没有返回分段内容：" + response.code());
     }
 
     public DownloadTask2(String url) throws IOException {
@@ -205,11 +318,16 @@ public class DownloadTask2 {
             Files.createDirectories(dirPath);
         }
         downloadInfo.setLocalPath(Paths.get(saveTo, downloadInfo.getFileName()));
+        resourceChanged = false;
 
         long threshold = 1024 * 1024 * 2;// 每个任务的阈值
         List<TaskInfo> taskInfoList = new ArrayList<>();
+        segmentSizer = null;
         // 根据阈值将下载任务拆分成诺干分
-        if (isSupportBreakpoint() && downloadInfo.getFileSize() > threshold) {
+        if (adaptiveSegments && isSupportBreakpoint() && downloadInfo.getFileSize() > threshold) {
+            // 自适应分段：分段在下载过程中按需生成，任务大小不固定，不能再按线程绑定临时文件，所以改用定位写入
+            segmentSizer = new SegmentSizer(downloadInfo.getFileSize(), THREAD_COUNT, threshold);
+        } else if (isSupportBreakpoint() && downloadInfo.getFileSize() > threshold) {
             // 只有支持断点续传，并且获取到了文件大小才能将文件分成多个任务运行。
             // 下面是按阈值分解任务，线程数固定，但任务数不固定，每个任务大小都差不多
             long startPos = 0, endPos = 0;
@@ -225,50 +343,221 @@ public class DownloadTask2 {
         } else {
             // 不支持断点续传，或者没获取到文件大小，就只有一个任务
             taskInfoList.add(new TaskInfo(0, downloadInfo.getFileSize()));
+            if (connectionController != null) {
+                log.info("服务器不支持断点续传或者没有文件大小，连接数自动调节不生效");
+            }
         }
 
+        // 连接数自动调节时同时下载的任务数会变，临时文件按THREAD_COUNT绑定不再可靠，也改用定位写入
+        boolean autoConnections = connectionController != null && isSupportBreakpoint() && downloadInfo.getFileSize() > threshold;
+        boolean positional = positionalWrite || segmentSizer != null || autoConnections;
+        if (positional) {
+            // 定位写入模式先把目标文件的大小一次分配好，各个任务再写到各自的位置
+            positionalWriter = new PositionalWriter(downloadInfo.getLocalPath());
+            positionalWriter.preallocate(downloadInfo.getFileSize());
+        }
+        speedStatistician.setExpectedBytes(downloadInfo.getFileSize());
         speedStatistician.start();
         Instant start = Instant.now();
 
         try {
-            // 控制并发流的线程数（这是全局的设定，不太灵活）
-            System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", String.valueOf(THREAD_COUNT));
-            List<Result> resultList = taskInfoList.parallelStream().map(taskInfo -> {
-                try {
-                    return taskInfo.call();
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }).collect(Collectors.toList());
+            List<Result> resultList;
+            if (segmentSizer != null) {
+                // 自适应分段：每个线程不断向SegmentSizer要下一个分段，直到文件分完
+                resultList = runWorkers(() -> {
+                    long[] range = segmentSizer.next();
+                    return range == null ? null : new TaskInfo(range[0], range[1]);
+                });
+            } else {
+                Queue<TaskInfo> pending = new ConcurrentLinkedQueue<>(taskInfoList);
+                resultList = runWorkers(pending::poll);
+            }
             Instant end = Instant.now();
             Duration time = Duration.between(start, end);
             log.info("下载结束，耗时：" + time.getSeconds() + " 秒");
-            merge(Optional.of(resultList.stream().distinct().collect(Collectors.toList())));
-            Files.delete(getTempPath());
-        } catch (RuntimeException e) {
+            if (!positional) {
+                // 合并文件交给后续处理线程池，不占网络线程
+                executors.postProcess().submit(() -> {
+                    merge(Optional.of(resultList.stream().distinct().collect(Collectors.toList())));
+                    Files.delete(getTempPath());
+                    return null;
+                }).get();
+            }
+        } catch (ExecutionException e) {
             log.error("出现异常：", e);
+            if (resourceChanged) {
+                throw new IOException("服务器上的文件已经变化，下载已中止", e.getCause());
+            }
         } finally {
             speedStatistician.stop();
+            closePositionalWriter();
+            if (bandwidth != null) {
+                // 下载结束后把带宽让给其他下载
+                bandwidth.close();
+            }
+        }
+    }
+
+    /**
+     * 在网络线程池上开THREAD_COUNT个工作循环，每个循环不断取下一个任务执行，没有任务时结束。
+     * 线程池是多个下载共用的，每个下载同时最多占THREAD_COUNT个线程。
+     * 定位写入模式下任务出错时没写完的部分放回去重新下载，所有循环的出错次数到了上限才结束
+     *
+     * @param nextTask 取下一个任务，没有任务时返回null
+     * @return
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private List<Result> runWorkers(Supplier<TaskInfo> nextTask) throws InterruptedException, ExecutionException {
+        // 出错任务剩下的部分放到这里，比新任务先取
+        Queue<TaskInfo> retries = new ConcurrentLinkedQueue<>();
+        AtomicBoolean drained = new AtomicBoolean();
+        Supplier<TaskInfo> next = () -> {
+            TaskInfo taskInfo = retries.poll();
+            if (taskInfo == null) {
+                taskInfo = nextTask.get();
+            }
+            if (taskInfo == null) {
+                drained.set(true);
+            }
+            return taskInfo;
+        };
+        activeWorkers.set(0);
+        taskErrors.set(0);
+        errorStreak.set(0);
+        retryAt = 0;
+        List<Future<List<Result>>> futures;
+        if (connectionController != null) {
+            futures = runAdaptive(() -> new Worker(next, retries), () -> !drained.get() || !retries.isEmpty());
+        } else {
+            List<Worker> workers = new ArrayList<>();
+            for (int i = 0; i < THREAD_COUNT; i++) {
+                workers.add(new Worker(next, retries));
+            }
+            activeWorkers.set(THREAD_COUNT);
+            futures = executors.network().invokeAll(workers);
+        }
+        List<Result> resultList = new ArrayList<>();
+        for (Future<List<Result>> future : futures) {
+            resultList.addAll(future.get());
+        }
+        return resultList;
+    }
+
+    /**
+     * 连接数自动调节：在调用线程上按控制器给出的连接数往网络线程池补充工作循环，多出来的循环在做完当前任务后自己退出。
+     * 暂时用不上的连接不占网络线程池的线程，不会影响共用线程池的其他下载
+     *
+     * @param newWorker 创建工作循环
+     * @param hasWork   是否还有任务没取走
+     * @return 所有工作循环的结果，返回时都已经结束
+     * @throws InterruptedException
+     */
+    private List<Future<List<Result>>> runAdaptive(Supplier<Worker> newWorker, BooleanSupplier hasWork) throws InterruptedException {
+        List<Future<List<Result>>> futures = new ArrayList<>();
+        while (true) {
+            boolean more = !resourceChanged && hasWork.getAsBoolean() && taskErrors.get() < MAX_TASK_ERRORS;
+            boolean canSpawn = more && System.currentTimeMillis() >= retryAt;
+            while (canSpawn && activeWorkers.get() < connectionController.getTarget()) {
+                activeWorkers.incrementAndGet();
+                try {
+                    futures.add(executors.network().submit(newWorker.get()));
+                } catch (RejectedExecutionException e) {
+                    activeWorkers.decrementAndGet();
+                    throw e;
+                }
+            }
+            if (activeWorkers.get() == 0 && !more) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        return futures;
+    }
+
+    /**
+     * 工作循环：不断取任务执行，没有任务时结束
+     */
+    class Worker implements Callable<List<Result>> {
+        private final Supplier<TaskInfo> nextTask;
+        private final Queue<TaskInfo> retries;
+
+        Worker(Supplier<TaskInfo> nextTask, Queue<TaskInfo> retries) {
+            this.nextTask = nextTask;
+            this.retries = retries;
+        }
+
+        @Override
+        public List<Result> call() throws Exception {
+            List<Result> results = new ArrayList<>();
+            boolean retired = false;
+            TaskInfo taskInfo;
+            try {
+                while (!resourceChanged && !(retired = retire()) && (taskInfo = nextTask.get()) != null) {
+                    long begin = System.currentTimeMillis();
+                    try {
+                        results.add(taskInfo.call());
+                        errorStreak.set(0);
+                    } catch (IOException e) {
+                        segmentStats.retry();
+                        int errors = taskErrors.incrementAndGet();
+                        if (connectionController != null) {
+                            connectionController.onError();
+                        }
+                        // 临时文件模式下出错的任务已经追加了一部分数据，不能重新下载
+                        if (resourceChanged || positionalWriter == null || errors >= MAX_TASK_ERRORS) {
+                            throw e;
+                        }
+                        // 没写完的部分放回去，这个循环或者其他循环接着下载
+                        retries.add(taskInfo.remainder());
+                        if (connectionController != null) {
+                            backOff();
+                            return results;
+                        }
+                    } finally {
+                        long totalMillis = System.currentTimeMillis() - begin;
+                        segmentStats.record(taskInfo.startPos, taskInfo.bytes, TimeUnit.MILLISECONDS.toNanos(totalMillis));
+                        if (segmentSizer != null) {
+                            // 下载完报告耗时，用来调整后面的分段大小
+                            segmentSizer.report(taskInfo.bytes, taskInfo.headerMillis, totalMillis);
+                        }
+                    }
+                }
+            } finally {
+                if (!retired) {
+                    activeWorkers.decrementAndGet();
+                }
+            }
+            return results;
+        }
+
+        /**
+         * 连接数自动调节时出错的循环直接退出，不占着网络线程等待，过一会再由调用线程按期望连接数补充
+         */
+        private void backOff() {
+            int streak = errorStreak.incrementAndGet();
+            retryAt = System.currentTimeMillis() + Math.min(MAX_RETRY_DELAY, 100L << Math.min(streak, 6));
+        }
+
+        /**
+         * 连接数自动调节时，工作循环比期望的多就退出，每次只退一个
+         *
+         * @return
+         */
+        private boolean retire() {
+            if (connectionController == null) {
+                return false;
+            }
+            int active = activeWorkers.get();
+            return active > connectionController.getTarget() && activeWorkers.compareAndSet(active, active - 1);
+        }
+    }
+
+    private void closePositionalWriter() throws IOException {
+        if (positionalWriter != null) {
+            positionalWriter.close();
+            positionalWriter = null;
         }
-        // 以下是线程池的实现
-//        ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_COUNT);
-//        List<Future<Result>> futures = threadPool.invokeAll(taskInfoList);
-//        try {
-//            List<Result> resultList = new ArrayList<>();
-//            for (Future<Result> future : futures) {
-//                resultList.add(future.get());
-//            }
-//            Instant end = Instant.now();
-//            Duration time = Duration.between(start, end);
-//            log.info("下载结束，耗时：" + time.getSeconds() + " 秒");
-//            threadPool.shutdown();
-//            merge(Optional.of(resultList.stream().distinct().collect(Collectors.toList())));
-//            Files.delete(getTempPath());
-//        } catch (ExecutionException e) {
-//            log.error("出现异常：", e);
-//        } finally {
-//            speedStatistician.stop();
-//        }
     }
 
     private void merge(Optional<List<Result>> resultList) throws IOException {
@@ -353,4 +642,93 @@ public class DownloadTask2 {
     public boolean isSupportBreakpoint() {
         return supportBreakpoint;
     }
+
+    public boolean isAdaptiveSegments() {
+        return adaptiveSegments;
+    }
+
+    /**
+     * 设置是否自适应分段大小，开启后分段大小根据带宽时延积和文件大小调整，并且总是使用定位写入
+     *
+     * @param adaptiveSegments
+     */
+    public void setAdaptiveSegments(boolean adaptiveSegments) {
+        this.adaptiveSegments = adaptiveSegments;
+    }
+
+    public DownloadExecutors getExecutors() {
+        return executors;
+    }
+
+    /**
+     * 设置下载用的线程池，默认所有下载共用DownloadExecutors.getDefault()
+     *
+     * @param executors
+     */
+    public void setExecutors(DownloadExecutors executors) {
+        this.executors = executors;
+    }
+
+    /**
+     * 这个下载的分段统计：分段耗时、速度和最慢的分段
+     *
+     * @return
+     */
+    public SegmentStats getSegmentStats() {
+        return segmentStats;
+    }
+
+    /**
+     * 速度统计：每秒的速度、平滑速度、剩余时间
+     *
+     * @return
+     */
+    public SpeedStatistician getSpeedStatistician() {
+        return speedStatistician;
+    }
+
+    public BandwidthLimiter.Download getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * 加入限速器，和其他下载按权重分享全局和主机的限速。运行中可以通过getBandwidth修改权重和限速
+     *
+     * @param limiter
+     * @param weight  权重，至少为1
+     * @param rate    这个下载自己的限速，字节/秒，0表示不限速
+     */
+    public void setBandwidthLimiter(BandwidthLimiter limiter, int weight, long rate) {
+        if (bandwidth != null) {
+            bandwidth.close();
+        }
+        bandwidth = limiter.register(downloadInfo.getLocation().getHost(), weight, rate);
+    }
+
+    public boolean isPositionalWrite() {
+        return positionalWrite;
+    }
+
+    /**
+     * 设置是否使用定位写入模式
+     *
+     * @param positionalWrite true：预分配目标文件，每个任务直接写到自己的偏移量；false：按线程绑定临时文件，最后合并
+     */
+    public void setPositionalWrite(boolean positionalWrite) {
+        this.positionalWrite = positionalWrite;
+    }
+
+    public ConnectionController getConnectionController() {
+        return connectionController;
+    }
+
+    /**
+     * 开启连接数自动调节：按下载速度增减同时下载的任务数，最多maxConnections个。服务器不支持断点续传或者没有文件大小时不生效
+     *
+     * @param minConnections 最小连接数
+     * @param maxConnections 最大连接数
+     */
+    public void setAutoConnections(int minConnections, int maxConnections) {
+        this.connectionController = new ConnectionController(minConnections, maxConnections);
+    }
 }
@@ -5,30 +5,43 @@ import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okio.BufferedSource;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.nbpeak.net.download.Utils;
 import org.nbpeak.net.download.demo.pojo.DownloadInfo;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 /**
- * 方案三：类似方案二，但每个下载线程会将数据写入缓存队列，由另一个线程写到文件中
+ * 方案三：类似方案二，但下载线程只负责把数据读到缓存，每块缓存交给磁盘线程池写到文件中
  */
 @Slf4j
 public class DownloadTask3 {
@@ -36,25 +49,70 @@ public class DownloadTask3 {
     private boolean supportBreakpoint;
     private DownloadInfo downloadInfo;
     private String eTag;
-    private OkHttpClient client = new OkHttpClient();
-    private static int COUNTER = 0;
+    // 分段请求发现服务器上的文件已经变化，其他线程不再取新任务
+    private volatile boolean resourceChanged;
+    private OkHttpClient client = HttpClientFactory.get();
+    // 任务编号计数器，每个下载实例单独计数
+    private final AtomicInteger counter = new AtomicInteger();
     private final static int THREAD_COUNT = 8;
     private SpeedStatistician speedStatistician = new SpeedStatistician(speed -> {
-        log.info("下载速度：" + Utils.byteToUnit(speed) + "/秒");
-//        log.info("当前缓存队列数据：" + this.dataQueue.size());
+        log.info("下载速度：" + Utils.byteToUnit(speed) + "/秒，" + this.speedStatistician);
+        if (this.connectionController != null) {
+            this.connectionController.onSpeed(speed);
+        }
     });
+    // 连接数自动调节，为空时固定THREAD_COUNT个连接
+    private ConnectionController connectionController;
+    // 正在运行的工作循环数和所有循环的出错次数
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicInteger taskErrors = new AtomicInteger();
+    private static final int MAX_TASK_ERRORS = 32;
+    // 连接数自动调节时出错的任务不马上重试，到这个时间才补充工作循环，连续出错时等待时间加倍
+    private volatile long retryAt;
+    private final AtomicInteger errorStreak = new AtomicInteger();
+    private static final long MAX_RETRY_DELAY = 5000;
 
-    private BlockingQueue<BuffData> dataQueue = new PriorityBlockingQueue<>();
+    // 写文件：每块缓存一个磁盘任务，磁盘线程池是多个下载共用的，不能让某个下载一直占着磁盘线程等数据
+    private PositionalWriter fileWriter;
+    private final Queue<Future<?>> writeFutures = new ConcurrentLinkedQueue<>();
+    private final AtomicLong writtenSize = new AtomicLong();
+    // 是否使用内存映射模式，开启后每个任务把数据直接写到目标文件映射出来的区域，不再经过磁盘线程池
+    private boolean mappedWrite;
+    private PositionalWriter mappedWriter;
+    // 缓冲池，为空时每个任务自己分配堆内存
+    private BufferPool bufferPool;
+    // 分片大小，大于0时下载线程每读满一个分片就交给磁盘线程池，而不是等整个任务读完
+    private int sliceSize;
+    // 这次下载实际使用的分片大小，由sliceSize、缓冲池和是否自适应分段决定，不改调用方设置的值
+    private int runSliceSize;
+    private final static int DEFAULT_SLICE_SIZE = 256 * 1024;
+    // 单连接流式下载时重复使用的缓冲大小
+    private final static int STREAM_BUFFER_SIZE = 256 * 1024;
+    // 是否自适应分段大小，开启后不再使用固定的2MB阈值
+    private boolean adaptiveSegments;
+    private SegmentSizer segmentSizer;
+    // 下载用的线程池，下载线程在网络线程池里，写文件的任务在磁盘线程池里
+    private DownloadExecutors executors = DownloadExecutors.getDefault();
+    // 在限速器里的登记，为空时不限速
+    private BandwidthLimiter.Download bandwidth;
+    // 这个下载的分段统计，同时累加到所有下载的汇总里
+    private final SegmentStats segmentStats = new SegmentStats(HttpClientFactory.getMetrics().getSegmentStats());
+    // 期望的文件摘要，为空时不校验。调用方没有设置时从HEAD响应头里取
+    private ExpectedDigest expectedDigest;
+    // 每写完一块就交给它按文件顺序算摘要
+    private OrderedDigest orderedDigest;
+    private volatile byte[] actualDigest;
 
     /**
      * 存储Buf数据，记录每个Buf的范围
-     * PriorityBlockingQueue 需要给一个排序器或在元素实现了Comparable
      */
-    class BuffData implements Comparable {
+    class BuffData {
         private int num;
         private long startPos;
         private long endPos;
         private ByteBuffer buffer;
+        // 缓冲是否从缓冲池借来的，写完文件后要还回去
+        private boolean pooled;
 
         public BuffData(int num, long startPos, long endPos) {
             this.startPos = startPos;
@@ -63,6 +121,19 @@ public class DownloadTask3 {
             this.buffer = ByteBuffer.allocate((int) (endPos - startPos + 1));
         }
 
+        /**
+         * 使用缓冲池借来的缓冲，缓冲大小不能小于范围的长度
+         */
+        public BuffData(int num, long startPos, long endPos, ByteBuffer pooledBuffer) {
+            this.startPos = startPos;
+            this.endPos = endPos;
+            this.num = num;
+            this.buffer = pooledBuffer;
+            this.buffer.clear();
+            this.buffer.limit((int) (endPos - startPos + 1));
+            this.pooled = true;
+        }
+
         public int getNum() {
             return num;
         }
@@ -75,8 +146,48 @@ public class DownloadTask3 {
             buffer.put(src, offset, len);
         }
 
-        public byte[] array() {
-            return buffer.array();
+        /**
+         * 从网络数据源直接读到缓冲里，省掉中间的byte数组
+         *
+         * @param source
+         * @return 读到的字节数，-1表示数据源已经读完
+         * @throws IOException
+         */
+        public int read(BufferedSource source) throws IOException {
+            return source.read(buffer);
+        }
+
+        public boolean hasRemaining() {
+            return buffer.hasRemaining();
+        }
+
+        /**
+         * 已经写入缓冲的字节数
+         *
+         * @return
+         */
+        public int size() {
+            return buffer.position();
+        }
+
+        /**
+         * 切换到读模式，返回待写入文件的数据
+         *
+         * @return
+         */
+        public ByteBuffer flip() {
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * 数据写入文件后，把借来的缓冲还给缓冲池
+         */
+        public void release() {
+            if (pooled && bufferPool != null) {
+                bufferPool.release(buffer);
+            }
+            buffer = null;
         }
 
         public long getStartPos() {
@@ -86,57 +197,234 @@ public class DownloadTask3 {
         public long getEndPos() {
             return endPos;
         }
-
-        @Override
-        public int compareTo(Object o) {
-            BuffData buffData = (BuffData) o;
-            return this.getNum() - buffData.getNum();
-        }
     }
 
     /**
      * 下载任务
      */
-    class TaskInfo implements Runnable {
+    class TaskInfo {
         private long startPos;
         private long endPos;
         private final int serialNum;
+        // 下载情况，自适应分段时用来调整后面的分段大小
+        private long bytes;
+        private long headerMillis;
+        private long totalMillis;
+        // 已经交给磁盘线程池的字节数，出错时只重新下载后面的部分
+        private long handedOff;
 
         public TaskInfo(long startPos, long endPos) {
             this.startPos = startPos;
             this.endPos = endPos;
-            this.serialNum = COUNTER++;
+            this.serialNum = counter.getAndIncrement();
         }
 
-        @Override
-        public void run() {
+        public void run() throws IOException, InterruptedException {
+            long begin = System.currentTimeMillis();
+            try {
+                download();
+            } finally {
+                totalMillis = System.currentTimeMillis() - begin;
+                segmentStats.record(startPos, bytes, TimeUnit.MILLISECONDS.toNanos(totalMillis));
+                if (segmentSizer != null) {
+                    segmentSizer.report(bytes, headerMillis, totalMillis);
+                }
+            }
+        }
+
+        /**
+         * 出错后还没交给磁盘线程池的部分，作为新任务重新下载
+         *
+         * @return 已经全部交出去时返回null
+         */
+        public TaskInfo remainder() {
+            long pos = startPos + handedOff;
+            return pos <= endPos ? new TaskInfo(pos, endPos) : null;
+        }
+
+        private void download() throws IOException, InterruptedException {
+            long begin = System.currentTimeMillis();
             String rangeStr = "bytes=" + startPos + "-" + endPos;
             Request.Builder builder = new Request.Builder()
                     .get()
                     .header("Range", rangeStr)
                     .url(downloadInfo.getLocation());
-            if (StringUtils.isNotEmpty(eTag)) {
-                builder.header("ETag", eTag);
+            if (StringUtils.isNotEmpty(eTag) && !eTag.startsWith("W/")) {
+                builder.header("If-Range", eTag);// 文件没变才返回分段内容，弱ETag不能用于If-Range
             }
             Request getRequest = builder.build();
             Call call = client.newCall(getRequest);
             log.info("任务：" + serialNum + "，开始下载：" + rangeStr);
             try (Response response = call.execute()) {
+                headerMillis = System.currentTimeMillis() - begin;
                 log.info("任务：" + serialNum + "，获得响应，内容长度：" + response.body().contentLength());
-                BuffData buffData = new BuffData(serialNum, startPos, endPos);
-                byte[] data = new byte[1024 * 8];
+                if (downloadInfo.getFileSize() > 0) {
+                    checkPartialContent(response);
+                }
+                if (mappedWriter != null) {
+                    bytes = writeToMapped(response.body().source());
+                    return;
+                }
+                BufferedSource source = response.body().source();
+                if (runSliceSize > 0) {
+                    bytes = publishSlices(source);
+                    return;
+                }
+                BuffData buffData = newBuffData(startPos, endPos);
                 int len;
-                InputStream inputStream = response.body().byteStream();
-                while ((len = inputStream.read(data)) > 0) {
-                    speedStatistician.add(len);
-                    buffData.write(data, 0, len);
+                BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
+                try {
+                    while (buffData.hasRemaining() && (len = buffData.read(source)) > 0) {
+                        speedStatistician.add(len);
+                        meter.add(len);
+                    }
+                } catch (IOException e) {
+                    // 缓冲没交给磁盘线程池，要马上还回去，否则缓冲池的预算会越用越少，最后下载线程全都等不到缓冲
+                    buffData.release();
+                    throw e;
                 }
-                dataQueue.offer(buffData);// 将缓存数据放入队列
+                meter.flush();
+                bytes = buffData.size();
+                submitWrite(buffData);
+                handedOff = bytes;
+                checkComplete(startPos + bytes - 1);
                 log.info("任务：" + serialNum + "，数据以写入缓存");
-            } catch (IOException e) {
-                log.error("下载出错了：", e);
             }
         }
+
+        /**
+         * 分片模式：每填满一个小分片就马上交给磁盘线程池，不用等整个任务下载完，网络读取和磁盘写入可以同时进行
+         *
+         * @param source
+         * @return 读到的字节数
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private long publishSlices(BufferedSource source) throws IOException, InterruptedException {
+            long pos = startPos;
+            int len = 0;
+            BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
+            while (pos <= endPos && len >= 0) {
+                BuffData slice = newBuffData(pos, Math.min(pos + runSliceSize - 1, endPos));
+                try {
+                    while (slice.hasRemaining() && (len = slice.read(source)) > 0) {
+                        speedStatistician.add(len);
+                        meter.add(len);
+                    }
+                } catch (IOException e) {
+                    // 正在填的分片还没交给磁盘线程池，还给缓冲池
+                    slice.release();
+                    throw e;
+                }
+                if (slice.size() == 0) {
+                    // 数据源提前结束，没读到数据的分片直接还回去
+                    slice.release();
+                    break;
+                }
+                pos += slice.size();
+                submitWrite(slice);
+                handedOff = pos - startPos;
+            }
+            meter.flush();
+            bytes = pos - startPos;
+            checkComplete(pos - 1);
+            log.info("任务：" + serialNum + "，数据已全部分片放入缓存，共：" + (pos - startPos));
+            return pos - startPos;
+        }
+
+        /**
+         * 连接提前结束时抛出异常，没读到的部分作为新任务重新下载
+         *
+         * @param lastPos 已经读到的最后一个字节的位置
+         * @throws IOException
+         */
+        private void checkComplete(long lastPos) throws IOException {
+            if (downloadInfo.getFileSize() > 0 && lastPos < Math.min(endPos, downloadInfo.getFileSize() - 1)) {
+                throw new IOException("连接提前结束，任务：" + serialNum + "，已读到：" + lastPos + "/" + endPos);
+            }
+        }
+
+        /**
+         * 有缓冲池并且范围放得下时从缓冲池借缓冲，缓冲池预算用完时会阻塞，直到写文件的任务归还缓冲
+         *
+         * @param start
+         * @param end
+         * @return
+         * @throws InterruptedException
+         */
+        private BuffData newBuffData(long start, long end) throws InterruptedException {
+            if (bufferPool != null && end - start + 1 <= bufferPool.getBufferSize()) {
+                return new BuffData(serialNum, start, end, bufferPool.acquire());
+            }
+            return new BuffData(serialNum, start, end);
+        }
+
+        /**
+         * 内存映射模式：把当前任务的范围映射到内存，网络数据直接读到映射区域，读完后force作为检查点
+         *
+         * @param source
+         * @return 读到的字节数
+         * @throws IOException
+         */
+        private long writeToMapped(BufferedSource source) throws IOException {
+            // 单任务时endPos可能等于文件大小，映射超出文件长度会把文件撑大，所以按文件大小截断
+            long end = Math.min(endPos, downloadInfo.getFileSize() - 1);
+            MappedByteBuffer mapped = mappedWriter.getChannel().map(FileChannel.MapMode.READ_WRITE, startPos, end - startPos + 1);
+            int len;
+            BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
+            while (mapped.hasRemaining() && (len = source.read(mapped)) > 0) {
+                speedStatistician.add(len);
+                meter.add(len);
+            }
+            meter.flush();
+            bytes = mapped.position();
+            if (mapped.hasRemaining()) {
+                throw new IOException("连接提前结束，任务：" + serialNum + "，已读到：" + (startPos + mapped.position() - 1) + "/" + end);
+            }
+            mapped.force();
+            if (orderedDigest != null) {
+                ByteBuffer written = mapped.duplicate();
+                written.flip();
+                orderedDigest.update(startPos, written);
+            }
+            log.info("任务：" + serialNum + "，数据已写入映射区域：" + startPos + "-" + end);
+            return mapped.position();
+        }
+    }
+
+    /**
+     * 分段请求必须返回分段内容（206）。If-Range不匹配时服务器返回200和整个文件，说明文件已经变了，
+     * 文件开头的数据不能写到这个任务的位置，标记后其他线程不再取新任务
+     *
+     * @param response
+     * @throws IOException
+     */
+    private void checkPartialContent(Response response) throws IOException {
+        if (response.code() == 206) {
+            return;
+        }
+        if (response.code() == 429 || response.code() == 503) {
+            if (connectionController != null) {
+                connectionController.onThrottled();
+            }
+            throw new IOException("服务器限流：" + response.code());
+        }
+        if (response.code() == 200 && response.request().header("If-Range") != null) {
+            resourceChanged = true;
+            throw new IOException("服务器上的文件已经变化");
+        }
+        throw new IOException("服务器没有返回分段内容：" + response.code());
+    }
+
+    /**
+     * 服务器上的文件已经变化时中止下载
+     *
+     * @throws IOException
+     */
+    private void checkResourceChanged() throws IOException {
+        if (resourceChanged) {
+            throw new IOException("服务器上的文件已经变化，下载已中止");
+        }
     }
 
     public DownloadTask3(String url) throws IOException {
@@ -183,14 +471,54 @@ public class DownloadTask3 {
             String acceptRanges = response.header("Accept-Ranges");
             this.supportBreakpoint = "bytes".equalsIgnoreCase(acceptRanges);
             this.eTag = response.header("ETag");
+            if (length < 0) {
+                length = probeLength(url);
+            }
+            this.expectedDigest = ExpectedDigest.fromHeaders(response.headers(), false);
             log.info("是否支持断点续传：" + Utils.yesOrNo(supportBreakpoint));
             log.info("ETag：" + eTag);
+            log.info("期望的摘要：" + expectedDigest);
 
             // 创建下载信息
             this.downloadInfo = new DownloadInfo(new URL(url), length, fileName);
         }
     }
 
+    /**
+     * 不知道文件大小时发一个只要第一个字节的分段请求，服务器支持Range时能从Content-Range里拿到文件大小，
+     * 分块传输的文件也就可以多线程下载了
+     *
+     * @param url
+     * @return 文件大小，拿不到时返回-1
+     */
+    private long probeLength(String url) {
+        Request probeRequest = new Request.Builder()
+                .get()
+                .header("Range", "bytes=0-0")
+                .url(url)
+                .build();
+        // 服务器不支持Range时会返回整个文件，不读响应体直接关掉
+        try (Response response = client.newCall(probeRequest).execute()) {
+            String contentRange = response.header("Content-Range");
+            if (response.code() == 206 && contentRange != null) {
+                // Content-Range: bytes 0-0/文件大小，不知道大小时是*
+                long length = NumberUtils.toLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim(), -1);
+                if (length >= 0) {
+                    this.supportBreakpoint = true;
+                    if (this.eTag == null) {
+                        this.eTag = response.header("ETag");
+                    }
+                    log.info("通过分段请求获取到文件大小：" + length);
+                    return length;
+                }
+            }
+            log.info("服务器没有返回文件大小，只能单连接下载");
+        } catch (IOException e) {
+            log.error("获取文件大小出错了：", e);
+        }
+        return -1;
+    }
+
     /**
      * 开始下载
      *
@@ -205,11 +533,40 @@ public class DownloadTask3 {
             Files.createDirectories(dirPath);
         }
         downloadInfo.setLocalPath(Paths.get(saveTo, downloadInfo.getFileName()));
+        orderedDigest = expectedDigest != null ? new OrderedDigest(expectedDigest) : null;
+        actualDigest = null;
+        resourceChanged = false;
+        if (downloadInfo.getFileSize() < 0 || !isSupportBreakpoint()) {
+            // 不知道文件大小，或者不支持断点续传，只能单连接下载
+            if (connectionController != null) {
+                log.info("服务器不支持断点续传或者没有文件大小，连接数自动调节不生效");
+            }
+            startStreaming();
+            return;
+        }
 
         long threshold = 1024 * 1024 * 2; // 每个任务的阈值2MB
+        int slice = sliceSize;
+        if (bufferPool != null) {
+            if (slice > 0) {
+                // 分片模式下缓冲池只需要放得下一个分片
+                slice = Math.min(slice, bufferPool.getBufferSize());
+            } else {
+                // 使用缓冲池时任务不能比池里的缓冲大，否则借不到缓冲
+                threshold = Math.min(threshold, bufferPool.getBufferSize());
+            }
+        }
         List<TaskInfo> taskInfoList = new ArrayList<>();
+        segmentSizer = null;
         // 根据阈值将下载任务拆分成诺干分
-        if (isSupportBreakpoint() && downloadInfo.getFileSize() > threshold) {
+        if (adaptiveSegments && isSupportBreakpoint() && downloadInfo.getFileSize() > threshold) {
+            // 自适应分段：分段在下载过程中按需生成，大小根据测得的带宽和RTT调整
+            segmentSizer = new SegmentSizer(downloadInfo.getFileSize(), THREAD_COUNT, threshold);
+            if (slice <= 0) {
+                // 分段可能变得很大，不能整段缓存，改成分片交给磁盘线程池
+                slice = bufferPool != null ? bufferPool.getBufferSize() : DEFAULT_SLICE_SIZE;
+            }
+        } else if (isSupportBreakpoint() && downloadInfo.getFileSize() > threshold) {
             // 只有支持断点续传，并且获取到了文件大小才能将文件分成多个任务运行。
             // 下面是按阈值分解任务，线程数固定，但任务数不固定，每个任务大小都差不多
             long startPos = 0, endPos = 0;
@@ -223,38 +580,417 @@ public class DownloadTask3 {
                 taskInfoList.add(new TaskInfo(endPos + 1, downloadInfo.getFileSize() - 1));
             }
         } else {
-            // 不支持断点续传，或者没获取到文件大小，就只有一个任务
-            taskInfoList.add(new TaskInfo(0, downloadInfo.getFileSize()));
+            // 文件不大，一个任务就够了
+            taskInfoList.add(new TaskInfo(0, downloadInfo.getFileSize() - 1));
         }
+        runSliceSize = slice;
+        speedStatistician.setExpectedBytes(downloadInfo.getFileSize());
         speedStatistician.start();
 
-        // 写文件线程，从缓存队列中取下载好的数据
-        Thread writeThread = new Thread(() -> {
-            try (RandomAccessFile randomAccessFile = new RandomAccessFile(downloadInfo.getLocalPath().toAbsolutePath().toString(), "rw")) {
-                long writSize = 0;
-                do {
-                    BuffData buffData = dataQueue.take();
-                    randomAccessFile.seek(buffData.getStartPos());
-                    randomAccessFile.write(buffData.array());
-                    log.info(buffData.getStartPos() + "-" + buffData.getEndPos() + " 已写入到文件，写入长度：" + buffData.array().length);
-                    writSize += buffData.array().length;
-                } while (writSize < downloadInfo.getFileSize());
-                log.info("文件写入结束：" + downloadInfo.getLocalPath() + "，写入大小：" + writSize + "，文件总大小：" + randomAccessFile.length());
-            } catch (IOException | InterruptedException e) {
-                log.error("写文件出错了：", e);
-            }
-        }, "写文件线程");
-        writeThread.start();
-
-        // 利用并发流执行任务
+        // 映射区域必须在文件长度以内，所以只有获取到文件大小时才能使用内存映射模式
+        if (mappedWrite && downloadInfo.getFileSize() > 0) {
+            startMapped(taskInfoList);
+            return;
+        }
+
+        // 每块缓存一个磁盘任务，这里只打开文件，等下载线程交数据过来
+        fileWriter = new PositionalWriter(downloadInfo.getLocalPath().toAbsolutePath());
+        writeFutures.clear();
+        writtenSize.set(0);
+        if (orderedDigest != null) {
+            orderedDigest.setReadBack(fileWriter.getChannel());
+        }
+
         Instant start = Instant.now();
-        // 控制并发流的线程数（这是全局的设定，不太灵活）
-        System.setProperty("java.util.concurrent.ForkJoinPool.common.parallelism", String.valueOf(THREAD_COUNT));
-        taskInfoList.parallelStream().forEach(TaskInfo::run);
+        try {
+            runTasks(taskInfoList);
+            checkResourceChanged();
+            Instant end = Instant.now();
+            Duration time = Duration.between(start, end);
+            log.info("下载结束，耗时：" + time.getSeconds() + " 秒");
+            // 等磁盘线程池把交过去的数据写完
+            awaitWrites();
+            long writSize = writtenSize.get();
+            log.info("文件写入结束：" + downloadInfo.getLocalPath() + "，写入大小：" + writSize + "，文件总大小：" + fileWriter.getChannel().size());
+            if (writSize < downloadInfo.getFileSize()) {
+                throw new IOException("下载线程已全部结束，文件没有写完：" + writSize + "/" + downloadInfo.getFileSize());
+            }
+            if (orderedDigest != null) {
+                actualDigest = orderedDigest.finish(downloadInfo.getFileSize());
+            }
+            if (bufferPool != null) {
+                log.info("缓冲池统计：" + bufferPool);
+            }
+            verifyDigest();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("等待下载结束时被中断");
+            interrupted.initCause(e);
+            throw interrupted;
+        } catch (ExecutionException e) {
+            // 下载的工作循环出错，或者磁盘线程池写文件出错
+            throw new IOException("下载出错了", e.getCause());
+        } finally {
+            // 出错时也要等已经交出去的写任务结束，它们会把缓冲还给缓冲池，然后才能关文件
+            awaitWritesQuietly();
+            fileWriter.close();
+            fileWriter = null;
+            speedStatistician.stop();
+            releaseBandwidth();
+        }
+    }
+
+    /**
+     * 把一块缓存交给磁盘线程池写到文件，写完还缓冲。每块一个任务，不占着磁盘线程等数据，
+     * 多个下载共用磁盘线程池时不会因为线程被别的下载占满而写不出去
+     *
+     * @param buffData
+     * @throws IOException 磁盘线程池已经关闭
+     */
+    private void submitWrite(BuffData buffData) throws IOException {
+        PositionalWriter writer = fileWriter;
+        try {
+            writeFutures.add(executors.disk().submit(() -> {
+                ByteBuffer data = buffData.flip();
+                int length = data.remaining();
+                // 写文件会移动data的位置，先留一份给摘要用，写完再交过去，乱序的数据要从文件读回来算
+                ByteBuffer written = data.duplicate();
+                try {
+                    writer.write(buffData.getStartPos(), data);
+                    if (orderedDigest != null) {
+                        orderedDigest.update(buffData.getStartPos(), written);
+                    }
+                } finally {
+                    // 写出错时也要还缓冲
+                    buffData.release();
+                }
+                writtenSize.addAndGet(length);
+                log.info(buffData.getStartPos() + "-" + buffData.getEndPos() + " 已写入到文件，写入长度：" + length);
+                return null;
+            }));
+        } catch (RejectedExecutionException e) {
+            buffData.release();
+            throw new IOException("磁盘线程池已经关闭", e);
+        }
+    }
+
+    /**
+     * 等所有写任务结束，有写任务出错时抛出第一个错误
+     *
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private void awaitWrites() throws InterruptedException, ExecutionException {
+        Future<?> future;
+        while ((future = writeFutures.poll()) != null) {
+            future.get();
+        }
+    }
+
+    /**
+     * 等所有写任务结束，忽略写任务的错误，被中断时保留中断状态
+     */
+    private void awaitWritesQuietly() {
+        boolean interrupted = false;
+        Future<?> future;
+        while ((future = writeFutures.poll()) != null) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 单连接流式下载：从OkHttp的数据源读到一个重复使用的缓冲里，读满后直接写到文件。
+     * 不按文件大小分配缓冲，也不经过磁盘线程池，不知道文件大小时读到连接结束为止
+     *
+     * @throws IOException
+     */
+    private void startStreaming() throws IOException {
+        Instant start = Instant.now();
+        long begin = System.nanoTime();
+        speedStatistician.setExpectedBytes(downloadInfo.getFileSize());
+        speedStatistician.start();
+        Request getRequest = new Request.Builder()
+                .get()
+                .url(downloadInfo.getLocation())
+                .build();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+        long written = 0;
+        log.info("单连接下载：" + downloadInfo.getLocation());
+        try (Response response = client.newCall(getRequest).execute();
+             FileChannel channel = FileChannel.open(downloadInfo.getLocalPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (!response.isSuccessful()) {
+                throw new IOException("服务器返回：" + response.code());
+            }
+            BufferedSource source = response.body().source();
+            BandwidthLimiter.Meter meter = BandwidthLimiter.newMeter(bandwidth);
+            boolean eof = false;
+            while (!eof) {
+                buffer.clear();
+                int len;
+                while (buffer.hasRemaining() && (len = source.read(buffer)) != 0) {
+                    if (len < 0) {
+                        eof = true;
+                        break;
+                    }
+                    speedStatistician.add(len);
+                    meter.add(len);
+                }
+                buffer.flip();
+                int length = buffer.remaining();
+                // 写文件会移动buffer的位置，先留一份给摘要用
+                ByteBuffer hashed = buffer.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, written + buffer.position());
+                }
+                if (orderedDigest != null) {
+                    orderedDigest.update(written, hashed);
+                }
+                written += length;
+            }
+            meter.flush();
+            if (downloadInfo.getFileSize() >= 0 && written != downloadInfo.getFileSize()) {
+                throw new IOException("连接提前结束，文件没有下载完：" + written + "/" + downloadInfo.getFileSize());
+            }
+            if (orderedDigest != null) {
+                actualDigest = orderedDigest.finish(written);
+            }
+        } finally {
+            segmentStats.record(0, written, System.nanoTime() - begin);
+            speedStatistician.stop();
+            releaseBandwidth();
+        }
+        if (downloadInfo.getFileSize() < 0) {
+            downloadInfo.setFileSize(written);
+        }
+        downloadInfo.setSaveSize(written);
+        verifyDigest();
+        Duration time = Duration.between(start, Instant.now());
+        log.info("下载结束：" + downloadInfo.getLocalPath() + "，大小：" + Utils.byteToUnit(written) + "，耗时：" + time.getSeconds() + " 秒");
+    }
+
+    /**
+     * 校验写文件时算好的摘要，不用再把文件读一遍
+     *
+     * @throws IOException 校验失败
+     */
+    private void verifyDigest() throws IOException {
+        if (orderedDigest == null) {
+            return;
+        }
+        expectedDigest.verify(actualDigest);
+        log.info("文件校验通过：" + expectedDigest);
+    }
+
+    /**
+     * 下载结束后把带宽让给其他下载
+     */
+    private void releaseBandwidth() {
+        if (bandwidth != null) {
+            bandwidth.close();
+        }
+    }
+
+    /**
+     * 在网络线程池上开THREAD_COUNT个工作循环执行任务，自适应分段时每个循环不断向SegmentSizer要下一个分段，直到文件分完。
+     * 线程池是多个下载共用的，每个下载同时最多占THREAD_COUNT个线程。
+     * 任务出错时没交给磁盘线程池的部分放回去重新下载，所有循环的出错次数到了上限才结束
+     *
+     * @param taskInfoList
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private void runTasks(List<TaskInfo> taskInfoList) throws InterruptedException, ExecutionException {
+        // 出错任务剩下的部分也放到这里，比SegmentSizer的新分段先取
+        Queue<TaskInfo> pending = new ConcurrentLinkedQueue<>(taskInfoList);
+        AtomicBoolean drained = new AtomicBoolean();
+        Supplier<TaskInfo> nextTask = () -> {
+            TaskInfo taskInfo = pending.poll();
+            if (taskInfo == null && segmentSizer != null) {
+                long[] range = segmentSizer.next();
+                taskInfo = range == null ? null : new TaskInfo(range[0], range[1]);
+            }
+            if (taskInfo == null) {
+                drained.set(true);
+            }
+            return taskInfo;
+        };
+        activeWorkers.set(0);
+        taskErrors.set(0);
+        errorStreak.set(0);
+        retryAt = 0;
+        if (connectionController != null) {
+            runAdaptive(() -> new Worker(nextTask, pending), () -> !drained.get() || !pending.isEmpty());
+            return;
+        }
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            workers.add(new Worker(nextTask, pending));
+        }
+        activeWorkers.set(THREAD_COUNT);
+        for (Future<Void> future : executors.network().invokeAll(workers)) {
+            future.get();
+        }
+    }
+
+    /**
+     * 连接数自动调节：在调用线程上按控制器给出的连接数往网络线程池补充工作循环，多出来的循环在做完当前任务后自己退出。
+     * 暂时用不上的连接不占网络线程池的线程，不会影响共用线程池的其他下载
+     *
+     * @param newWorker 创建工作循环
+     * @param hasWork   是否还有任务没取走
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private void runAdaptive(Supplier<Worker> newWorker, BooleanSupplier hasWork) throws InterruptedException, ExecutionException {
+        List<Future<Void>> futures = new ArrayList<>();
+        while (true) {
+            boolean more = !resourceChanged && hasWork.getAsBoolean() && taskErrors.get() < MAX_TASK_ERRORS;
+            boolean canSpawn = more && System.currentTimeMillis() >= retryAt;
+            while (canSpawn && activeWorkers.get() < connectionController.getTarget()) {
+                activeWorkers.incrementAndGet();
+                try {
+                    futures.add(executors.network().submit(newWorker.get()));
+                } catch (RejectedExecutionException e) {
+                    activeWorkers.decrementAndGet();
+                    throw e;
+                }
+            }
+            if (activeWorkers.get() == 0 && !more) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+
+    /**
+     * 工作循环：不断取任务执行，没有任务时结束
+     */
+    class Worker implements Callable<Void> {
+        private final Supplier<TaskInfo> nextTask;
+        private final Queue<TaskInfo> pending;
+
+        Worker(Supplier<TaskInfo> nextTask, Queue<TaskInfo> pending) {
+            this.nextTask = nextTask;
+            this.pending = pending;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            boolean retired = false;
+            TaskInfo taskInfo;
+            try {
+                while (!resourceChanged && !(retired = retire()) && (taskInfo = nextTask.get()) != null) {
+                    try {
+                        taskInfo.run();
+                        errorStreak.set(0);
+                    } catch (IOException e) {
+                        log.error("任务：" + taskInfo.serialNum + "，下载出错了：", e);
+                        segmentStats.retry();
+                        int errors = taskErrors.incrementAndGet();
+                        if (connectionController != null) {
+                            connectionController.onError();
+                        }
+                        if (resourceChanged) {
+                            // 文件变了，其他循环也不再取新任务，由start统一报告
+                            return null;
+                        }
+                        if (errors >= MAX_TASK_ERRORS) {
+                            throw e;
+                        }
+                        // 没交给磁盘线程池的部分放回去，这个循环或者其他循环接着下载
+                        TaskInfo rest = taskInfo.remainder();
+                        if (rest != null) {
+                            pending.add(rest);
+                        }
+                        if (connectionController != null) {
+                            backOff();
+                            return null;
+                        }
+                    }
+                }
+            } finally {
+                if (!retired) {
+                    activeWorkers.decrementAndGet();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 连接数自动调节时出错的循环直接退出，不占着网络线程等待，过一会再由调用线程按期望连接数补充
+         */
+        private void backOff() {
+            int streak = errorStreak.incrementAndGet();
+            retryAt = System.currentTimeMillis() + Math.min(MAX_RETRY_DELAY, 100L << Math.min(streak, 6));
+        }
+
+        /**
+         * 连接数自动调节时，工作循环比期望的多就退出，每次只退一个
+         *
+         * @return
+         */
+        private boolean retire() {
+            if (connectionController == null) {
+                return false;
+            }
+            int active = activeWorkers.get();
+            return active > connectionController.getTarget() && activeWorkers.compareAndSet(active, active - 1);
+        }
+    }
+
+    /**
+     * 内存映射模式：预分配目标文件，下载线程各自写自己的映射区域，不经过磁盘线程池
+     *
+     * @param taskInfoList
+     * @throws IOException
+     */
+    private void startMapped(List<TaskInfo> taskInfoList) throws IOException {
+        Instant start = Instant.now();
+        try (PositionalWriter writer = new PositionalWriter(downloadInfo.getLocalPath())) {
+            writer.preallocate(downloadInfo.getFileSize());
+            this.mappedWriter = writer;
+            if (orderedDigest != null) {
+                orderedDigest.setReadBack(writer.getChannel());
+            }
+            try {
+                runTasks(taskInfoList);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("等待下载结束时被中断", e);
+            } catch (ExecutionException e) {
+                throw new IOException("下载出错了", e.getCause());
+            }
+            checkResourceChanged();
+            // 每个区域下载完都已经force过，最后再把文件的元数据也刷到磁盘
+            writer.getChannel().force(true);
+            log.info("文件写入结束：" + downloadInfo.getLocalPath() + "，文件总大小：" + writer.getChannel().size());
+            if (orderedDigest != null) {
+                actualDigest = orderedDigest.finish(downloadInfo.getFileSize());
+            }
+            verifyDigest();
+        } finally {
+            this.mappedWriter = null;
+            speedStatistician.stop();
+            releaseBandwidth();
+        }
         Instant end = Instant.now();
         Duration time = Duration.between(start, end);
         log.info("下载结束，耗时：" + time.getSeconds() + " 秒");
-        speedStatistician.stop();
     }
 
     /**
@@ -299,4 +1035,131 @@ public class DownloadTask3 {
     public boolean isSupportBreakpoint() {
         return supportBreakpoint;
     }
+
+    /**
+     * 这个下载的分段统计：分段耗时、速度和最慢的分段
+     *
+     * @return
+     */
+    public SegmentStats getSegmentStats() {
+        return segmentStats;
+    }
+
+    /**
+     * 速度统计：每秒的速度、平滑速度、剩余时间
+     *
+     * @return
+     */
+    public SpeedStatistician getSpeedStatistician() {
+        return speedStatistician;
+    }
+
+    public ExpectedDigest getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    /**
+     * 设置期望的文件摘要，每块数据写到文件后按文件顺序边写边算，下载结束时校验，不一致时start抛出异常。
+     * 默认从HEAD响应的Digest、Content-MD5、x-goog-hash等头里取
+     *
+     * @param expectedDigest 为空时不校验
+     */
+    public void setExpectedDigest(ExpectedDigest expectedDigest) {
+        this.expectedDigest = expectedDigest;
+    }
+
+    public BandwidthLimiter.Download getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * 加入限速器，和其他下载按权重分享全局和主机的限速。运行中可以通过getBandwidth修改权重和限速
+     *
+     * @param limiter
+     * @param weight  权重，至少为1
+     * @param rate    这个下载自己的限速，字节/秒，0表示不限速
+     */
+    public void setBandwidthLimiter(BandwidthLimiter limiter, int weight, long rate) {
+        releaseBandwidth();
+        bandwidth = limiter.register(downloadInfo.getLocation().getHost(), weight, rate);
+    }
+
+    public DownloadExecutors getExecutors() {
+        return executors;
+    }
+
+    /**
+     * 设置下载用的线程池，默认所有下载共用DownloadExecutors.getDefault()
+     *
+     * @param executors
+     */
+    public void setExecutors(DownloadExecutors executors) {
+        this.executors = executors;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 设置缓冲池，下载线程从池里借缓冲，写文件的任务写完后归还，池的预算用完时下载线程会等待
+     *
+     * @param bufferPool 为空时每个任务自己分配缓冲，交给磁盘线程池的缓存不限大小
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public int getSliceSize() {
+        return sliceSize;
+    }
+
+    /**
+     * 设置分片大小，建议64KB到256KB，使用缓冲池时不能超过池里缓冲的大小
+     *
+     * @param sliceSize 0表示不分片，每个任务下载完才交给磁盘线程池
+     */
+    public void setSliceSize(int sliceSize) {
+        this.sliceSize = sliceSize;
+    }
+
+    public boolean isAdaptiveSegments() {
+        return adaptiveSegments;
+    }
+
+    /**
+     * 设置是否自适应分段大小，开启后分段大小根据带宽时延积和文件大小调整，没有设置分片大小时自动使用分片模式
+     *
+     * @param adaptiveSegments
+     */
+    public void setAdaptiveSegments(boolean adaptiveSegments) {
+        this.adaptiveSegments = adaptiveSegments;
+    }
+
+    public boolean isMappedWrite() {
+        return mappedWrite;
+    }
+
+    /**
+     * 设置是否使用内存映射模式
+     *
+     * @param mappedWrite true：按任务范围映射目标文件，下载线程直接写映射区域；false：写入缓存，每块交给磁盘线程池写到文件
+     */
+    public void setMappedWrite(boolean mappedWrite) {
+        this.mappedWrite = mappedWrite;
+    }
+
+    public ConnectionController getConnectionController() {
+        return connectionController;
+    }
+
+    /**
+     * 开启连接数自动调节：按下载速度增减同时下载的任务数，最多maxConnections个。不知道文件大小或者不支持断点续传时只能单连接下载，不生效
+     *
+     * @param minConnections 最小连接数
+     * @param maxConnections 最大连接数
+     */
+    public void setAutoConnections(int minConnections, int maxConnections) {
+        this.connectionController = new ConnectionController(minConnections, maxConnections);
+    }
 }
@@ -0,0 +1,200 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.Headers;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 期望的文件摘要：下载过程中边收数据边算，下载结束时就已经校验完，不用再把文件从磁盘读一遍。
+ * 可以由调用方给出，也可以从服务器的Digest、Repr-Digest、Content-MD5、x-goog-hash响应头里取
+ */
+public class ExpectedDigest {
+    public static final String CRC32C = "CRC32C";
+    // 响应头里的算法名和Java里的算法名，按强度从高到低排列，有多个时取第一个
+    private static final Map<String, String> ALGORITHMS = new LinkedHashMap<>();
+
+    static {
+        ALGORITHMS.put("sha-512", "SHA-512");
+        ALGORITHMS.put("sha-256", "SHA-256");
+        ALGORITHMS.put("sha-1", "SHA-1");
+        ALGORITHMS.put("sha", "SHA-1");
+        ALGORITHMS.put("md5", "MD5");
+        ALGORITHMS.put("crc32c", CRC32C);
+    }
+
+    private final String algorithm;
+    private final byte[] value;
+
+    private ExpectedDigest(String algorithm, byte[] value) {
+        this.algorithm = algorithm;
+        this.value = value;
+    }
+
+    /**
+     * 调用方给出的摘要
+     *
+     * @param algorithm 算法名，比如SHA-256、MD5、CRC32C
+     * @param hex       十六进制的摘要值
+     * @return
+     */
+    public static ExpectedDigest of(String algorithm, String hex) {
+        String name = algorithmName(algorithm);
+        // 提前检查算法是否可用，不要等到下载时才报错
+        newDigest(name);
+        return new ExpectedDigest(name, fromHex(hex));
+    }
+
+    /**
+     * 响应头、Metalink里的算法名转成Java里的算法名，比如sha-256转成SHA-256
+     *
+     * @param algorithm
+     * @return
+     */
+    static String algorithmName(String algorithm) {
+        return ALGORITHMS.getOrDefault(algorithm.toLowerCase(Locale.ROOT), algorithm.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * 创建计算某种摘要的MessageDigest
+     *
+     * @param algorithm Java里的算法名，或者CRC32C
+     * @return
+     */
+    static MessageDigest newDigest(String algorithm) {
+        if (CRC32C.equals(algorithm)) {
+            return new Crc32c();
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("不支持的摘要算法：" + algorithm, e);
+        }
+    }
+
+    /**
+     * 从响应头里取摘要，有多个时取最强的
+     *
+     * @param headers
+     * @param preferCrc32c 有CRC32C时优先用它，分段各自算完可以直接合并，不用按文件顺序算
+     * @return 没有可用的摘要时返回null
+     */
+    public static ExpectedDigest fromHeaders(Headers headers, boolean preferCrc32c) {
+        Map<String, byte[]> found = new LinkedHashMap<>();
+        // RFC 3230：Digest: sha-256=base64, md5=base64
+        for (String header : headers.values("Digest")) {
+            parseList(header, found);
+        }
+        // RFC 9530：Repr-Digest: sha-256=:base64:
+        for (String header : headers.values("Repr-Digest")) {
+            parseList(header, found);
+        }
+        // 谷歌云存储：x-goog-hash: crc32c=base64, md5=base64，可能分成多个头
+        for (String header : headers.values("x-goog-hash")) {
+            parseList(header, found);
+        }
+        String contentMd5 = headers.get("Content-MD5");
+        if (contentMd5 != null && !found.containsKey("MD5")) {
+            byte[] value = decode(contentMd5.trim());
+            if (value != null) {
+                found.put("MD5", value);
+            }
+        }
+        if (preferCrc32c && found.containsKey(CRC32C)) {
+            return new ExpectedDigest(CRC32C, found.get(CRC32C));
+        }
+        for (String name : ALGORITHMS.values()) {
+            if (found.containsKey(name)) {
+                return new ExpectedDigest(name, found.get(name));
+            }
+        }
+        return null;
+    }
+
+    private static void parseList(String header, Map<String, byte[]> found) {
+        for (String item : header.split(",")) {
+            int eq = item.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String name = ALGORITHMS.get(item.substring(0, eq).trim().toLowerCase(Locale.ROOT));
+            String encoded = item.substring(eq + 1).trim();
+            if (encoded.length() > 1 && encoded.startsWith(":") && encoded.endsWith(":")) {
+                encoded = encoded.substring(1, encoded.length() - 1);
+            }
+            byte[] value = decode(encoded);
+            if (name != null && value != null && !found.containsKey(name)) {
+                found.put(name, value);
+            }
+        }
+    }
+
+    private static byte[] decode(String base64) {
+        try {
+            return Base64.getDecoder().decode(base64);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public boolean isCrc32c() {
+        return CRC32C.equals(algorithm);
+    }
+
+    /**
+     * 创建计算这种摘要的MessageDigest
+     *
+     * @return
+     */
+    public MessageDigest newDigest() {
+        return newDigest(algorithm);
+    }
+
+    /**
+     * 和算出来的摘要比较，不一致时抛出异常
+     *
+     * @param actual 算出来的摘要，为空表示文件没有下载完整，没法算
+     * @throws IOException
+     */
+    public void verify(byte[] actual) throws IOException {
+        if (actual == null) {
+            throw new IOException("文件没有下载完整，无法校验：" + this);
+        }
+        if (!MessageDigest.isEqual(value, actual)) {
+            throw new IOException("文件校验失败，期望：" + this + "，实际：" + toHex(actual));
+        }
+    }
+
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("摘要不正确：" + hex);
+        }
+        byte[] value = new byte[hex.length() / 2];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return value;
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + ":" + toHex(value);
+    }
+}
@@ -0,0 +1,111 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 整个进程共用的OkHttpClient。所有下载任务的HEAD请求、分段请求都从同一个连接池取连接，
+ * 一个分段下完后连接回到池里，下一个分段（包括别的下载）直接复用，不用再做TCP和TLS握手。
+ * 默认的连接池只保留5个空闲连接，并发分段多了之后连接会被不断关闭重建，所以连接池大小要和并发连接数一致。
+ */
+@Slf4j
+public final class HttpClientFactory {
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    public static final long DEFAULT_KEEP_ALIVE_SECONDS = 300;
+
+    private static final ConnectionStats STATS = new ConnectionStats();
+    private static final DownloadMetrics METRICS = new DownloadMetrics(STATS);
+    private static int maxConnections;
+    private static long keepAliveSeconds;
+    private static volatile OkHttpClient client;
+
+    static {
+        configure(DEFAULT_MAX_CONNECTIONS, DEFAULT_KEEP_ALIVE_SECONDS);
+    }
+
+    private HttpClientFactory() {
+    }
+
+    /**
+     * 共用的客户端
+     *
+     * @return
+     */
+    public static OkHttpClient get() {
+        return client;
+    }
+
+    /**
+     * 只使用指定协议的客户端，和共用客户端使用同一个连接池。
+     * 比如只用HTTP_1_1对比每个分段一个连接的效果，或者本地没有TLS时用H2_PRIOR_KNOWLEDGE直接走明文HTTP/2
+     *
+     * @param protocols
+     * @return
+     */
+    public static OkHttpClient withProtocols(Protocol... protocols) {
+        return client.newBuilder().protocols(Arrays.asList(protocols)).build();
+    }
+
+    /**
+     * 重新配置共用的客户端，之后创建的下载任务使用新的配置，已经创建的任务继续用原来的客户端
+     *
+     * @param maxConnections   并发连接数：连接池保留这么多空闲连接，异步请求的并发数也限制在这个数
+     * @param keepAliveSeconds 空闲连接保留多久
+     */
+    public static synchronized void configure(int maxConnections, long keepAliveSeconds) {
+        if (maxConnections < 1 || keepAliveSeconds < 0) {
+            throw new IllegalArgumentException("连接池配置不正确：" + maxConnections + "，" + keepAliveSeconds);
+        }
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxConnections);
+        dispatcher.setMaxRequestsPerHost(maxConnections);
+        OkHttpClient.Builder builder = client != null ? client.newBuilder() : new OkHttpClient.Builder();
+        client = builder
+                .connectionPool(new ConnectionPool(maxConnections, keepAliveSeconds, TimeUnit.SECONDS))
+                .dispatcher(dispatcher)
+                .eventListenerFactory(METRICS)
+                .build();
+        HttpClientFactory.maxConnections = maxConnections;
+        HttpClientFactory.keepAliveSeconds = keepAliveSeconds;
+        log.debug("连接池：" + maxConnections + " 个连接，保留 " + keepAliveSeconds + " 秒");
+    }
+
+    /**
+     * 连接池不够大时扩大到指定的并发连接数
+     *
+     * @param maxConnections
+     */
+    public static synchronized void ensureCapacity(int maxConnections) {
+        if (maxConnections > HttpClientFactory.maxConnections) {
+            configure(maxConnections, keepAliveSeconds);
+        }
+    }
+
+    public static synchronized int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * 连接复用统计，所有使用共用客户端的请求都算在内
+     *
+     * @return
+     */
+    public static ConnectionStats getStats() {
+        return STATS;
+    }
+
+    /**
+     * 请求和分段的指标，所有使用共用客户端的请求都算在内
+     *
+     * @return
+     */
+    public static DownloadMetrics getMetrics() {
+        return METRICS;
+    }
+}
@@ -0,0 +1,127 @@
+package org.nbpeak.net.download.demo;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带统计的固定大小线程池：线程有名字，都是守护线程，记录任务在队列里等了多久、队列最长排到多少，
+ * 用来判断某一类工作（网络、磁盘、后续处理）的线程是不是不够用
+ */
+public class MeteredThreadPool extends ThreadPoolExecutor {
+    private final String name;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicInteger peakQueueSize = new AtomicInteger();
+
+    /**
+     * 记录进入队列的时间
+     */
+    private static class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long enqueueNanos = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * @param name    线程名前缀
+     * @param threads 线程数
+     */
+    public MeteredThreadPool(String name, int threads) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), newThreadFactory(name));
+        this.name = name;
+    }
+
+    private static ThreadFactory newThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            // 下载线程不应该阻止宿主程序退出
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        submitted.incrementAndGet();
+        super.execute(new TimedTask(command));
+        int queued = getQueue().size();
+        int peak;
+        while (queued > (peak = peakQueueSize.get()) && !peakQueueSize.compareAndSet(peak, queued)) {
+            // 并发更新峰值，失败了重试
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        if (r instanceof TimedTask) {
+            long wait = System.nanoTime() - ((TimedTask) r).enqueueNanos;
+            waitNanos.addAndGet(wait);
+            long max;
+            while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait)) {
+                // 并发更新最大值，失败了重试
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * 当前排队的任务数
+     *
+     * @return
+     */
+    public int getQueueSize() {
+        return getQueue().size();
+    }
+
+    public int getPeakQueueSize() {
+        return peakQueueSize.get();
+    }
+
+    /**
+     * 已开始执行的任务的平均排队时间（毫秒）
+     *
+     * @return
+     */
+    public double getAverageWaitMillis() {
+        long started = getCompletedTaskCount() + getActiveCount();
+        return started == 0 ? 0 : waitNanos.get() / 1e6 / started;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return name + "{threads=" + getPoolSize() + "/" + getMaximumPoolSize() +
+                ", active=" + getActiveCount() +
+                ", submitted=" + getSubmittedCount() +
+                ", completed=" + getCompletedTaskCount() +
+                ", queued=" + getQueueSize() +
+                ", peakQueued=" + getPeakQueueSize() +
+                ", avgWait=" + String.format("%.2f", getAverageWaitMillis()) + "ms" +
+                ", maxWait=" + String.format("%.2f", getMaxWaitMillis()) + "ms" +
+                "}";
+    }
+}
@@ -0,0 +1,268 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.nbpeak.net.download.Utils;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 多源下载的镜像选择：同一个文件放在几个镜像上，每个分段请求发给哪个镜像由这里决定。
+ * 每个镜像按分段测得的单连接速度做平滑，新分段交给"速度/正在下载的连接数+1"最大的镜像，
+ * 这样各镜像分到的连接数和它的速度成正比，总速度接近各镜像速度之和。出错多的镜像降低权重，
+ * 连续出错的镜像暂停使用一段时间，每次暂停的时间翻倍。镜像使用前先用HEAD检查文件大小和ETag是否和主地址一致
+ */
+@Slf4j
+public class MirrorSelector {
+    // 连续出错几次后暂停使用
+    private static final int DEMOTE_AFTER_ERRORS = 3;
+    // 第一次暂停的时间，之后每次翻倍，最多翻16倍
+    private static final long DEMOTE_MILLIS = 30 * 1000;
+    // 速度平滑系数，越大越看重最近一个分段的速度
+    private static final double SMOOTHING = 0.3;
+
+    private final List<Mirror> mirrors = new CopyOnWriteArrayList<>();
+    private final Mirror primary;
+
+    /**
+     * 一个镜像和它的统计，统计只在持有MirrorSelector的锁时修改
+     */
+    public class Mirror {
+        private final URL url;
+        private String eTag;
+        private String lastModified;
+        // 单连接的平滑速度，字节/秒，没测过时为0
+        private double speed;
+        private long bytes;
+        private int requests;
+        private int errors;
+        private int consecutiveErrors;
+        private int demotions;
+        private long demotedUntil;
+        // 不能用的原因，为空表示可以用
+        private String disabledReason;
+        private int active;
+
+        private Mirror(URL url, String eTag, String lastModified) {
+            this.url = url;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public boolean isPrimary() {
+            return this == primary;
+        }
+
+        /**
+         * 带上这个镜像自己的If-Range，文件没变才返回分段内容。弱ETag不能用于If-Range，这时改用Last-Modified
+         *
+         * @param builder
+         */
+        public void addIfRange(Request.Builder builder) {
+            if (StringUtils.isNotEmpty(eTag) && !eTag.startsWith("W/")) {
+                builder.header("If-Range", eTag);
+            } else if (StringUtils.isNotEmpty(lastModified)) {
+                builder.header("If-Range", lastModified);
+            }
+        }
+
+        private double errorRate() {
+            return requests == 0 ? 0 : (double) errors / requests;
+        }
+
+        @Override
+        public String toString() {
+            synchronized (MirrorSelector.this) {
+                return url + "（" + Utils.byteToUnit(Math.round(speed)) + "/秒，已下载：" + Utils.byteToUnit(bytes)
+                        + "，请求：" + requests + "，出错：" + errors
+                        + (disabledReason != null ? "，不可用：" + disabledReason : demotedUntil > System.currentTimeMillis() ? "，暂停中" : "") + "）";
+            }
+        }
+    }
+
+    /**
+     * @param primary      主地址
+     * @param eTag         主地址的ETag
+     * @param lastModified 主地址的Last-Modified
+     */
+    public MirrorSelector(URL primary, String eTag, String lastModified) {
+        this.primary = new Mirror(primary, eTag, lastModified);
+        mirrors.add(this.primary);
+    }
+
+    public void add(URL url) {
+        mirrors.add(new Mirror(url, null, null));
+    }
+
+    /**
+     * 主地址的ETag和Last-Modified在创建之后才拿到时补上，比如投机模式下第一个分段的响应到达时
+     *
+     * @param eTag
+     * @param lastModified
+     */
+    public synchronized void setPrimaryValidators(String eTag, String lastModified) {
+        primary.eTag = eTag;
+        primary.lastModified = lastModified;
+    }
+
+    public List<Mirror> getMirrors() {
+        return new ArrayList<>(mirrors);
+    }
+
+    /**
+     * 用HEAD请求检查每个镜像：要支持Range，文件大小和主地址一样，都有ETag时ETag也要一样。不符合的镜像不再使用
+     *
+     * @param client
+     * @param fileSize 主地址的文件大小
+     * @return 可以使用的镜像数，包括主地址
+     */
+    public int validate(OkHttpClient client, long fileSize) {
+        for (Mirror mirror : mirrors) {
+            if (mirror.isPrimary()) {
+                continue;
+            }
+            Request headRequest = new Request.Builder().head().url(mirror.url).build();
+            String reason;
+            try (Response response = client.newCall(headRequest).execute()) {
+                long length = NumberUtils.toLong(response.header("Content-Length"), -1);
+                String eTag = response.header("ETag");
+                if (!response.isSuccessful()) {
+                    reason = "响应码：" + response.code();
+                } else if (!"bytes".equalsIgnoreCase(response.header("Accept-Ranges"))) {
+                    reason = "不支持断点续传";
+                } else if (length != fileSize) {
+                    reason = "文件大小不一致：" + length;
+                } else if (eTag != null && primary.eTag != null && !Objects.equals(eTag, primary.eTag)) {
+                    reason = "ETag不一致：" + eTag;
+                } else {
+                    synchronized (this) {
+                        mirror.eTag = eTag;
+                        mirror.lastModified = response.header("Last-Modified");
+                    }
+                    reason = null;
+                }
+            } catch (IOException e) {
+                reason = "连接出错：" + e.getMessage();
+            }
+            if (reason != null) {
+                disable(mirror, reason);
+            }
+        }
+        int usable = 0;
+        for (Mirror mirror : mirrors) {
+            if (mirror.disabledReason == null) {
+                usable++;
+            }
+        }
+        log.info("可用的下载源：" + usable + "/" + mirrors.size());
+        return usable;
+    }
+
+    /**
+     * 给一个新的分段请求选镜像，用完后要调用release
+     *
+     * @return
+     */
+    public synchronized Mirror acquire() {
+        long now = System.currentTimeMillis();
+        List<Mirror> candidates = new ArrayList<>();
+        double measuredSpeed = 0;
+        int measured = 0;
+        for (Mirror mirror : mirrors) {
+            if (mirror.disabledReason == null && mirror.demotedUntil <= now) {
+                candidates.add(mirror);
+                if (mirror.speed > 0) {
+                    measuredSpeed += mirror.speed;
+                    measured++;
+                }
+            }
+        }
+        Mirror best = null;
+        if (candidates.isEmpty()) {
+            // 镜像都暂停了，主地址还能用就用主地址，否则选暂停最早结束的
+            best = primary.disabledReason == null ? primary : mirrors.stream().filter(m -> m.disabledReason == null)
+                    .min((a, b) -> Long.compare(a.demotedUntil, b.demotedUntil)).orElse(primary);
+        } else {
+            // 没测过速度的镜像按已测镜像的平均速度算，先让它们都分到连接
+            double unknownSpeed = measured > 0 ? measuredSpeed / measured : 1;
+            double bestScore = -1;
+            for (Mirror mirror : candidates) {
+                double speed = mirror.speed > 0 ? mirror.speed : unknownSpeed;
+                double health = 1 - mirror.errorRate();
+                double score = speed * health * health / (mirror.active + 1);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = mirror;
+                }
+            }
+        }
+        best.active++;
+        best.requests++;
+        return best;
+    }
+
+    /**
+     * 分段请求结束，更新镜像的统计
+     *
+     * @param mirror
+     * @param bytes  这次下载的字节数
+     * @param nanos  这次请求的耗时
+     * @param failed 是否出错
+     */
+    public synchronized void release(Mirror mirror, long bytes, long nanos, boolean failed) {
+        mirror.active--;
+        mirror.bytes += bytes;
+        // 太短的分段测不准速度，不计入
+        if (bytes >= 64 * 1024 && nanos > 0) {
+            double rate = bytes * 1e9 / nanos;
+            mirror.speed = mirror.speed > 0 ? mirror.speed + SMOOTHING * (rate - mirror.speed) : rate;
+        }
+        if (!failed) {
+            mirror.consecutiveErrors = 0;
+            return;
+        }
+        mirror.errors++;
+        if (++mirror.consecutiveErrors >= DEMOTE_AFTER_ERRORS) {
+            long millis = DEMOTE_MILLIS << Math.min(mirror.demotions, 4);
+            mirror.demotions++;
+            mirror.consecutiveErrors = 0;
+            mirror.demotedUntil = System.currentTimeMillis() + millis;
+            log.error("下载源连续出错，暂停使用 " + millis / 1000 + " 秒：" + mirror.url);
+        }
+    }
+
+    /**
+     * 不再使用这个镜像，比如镜像上的文件和主地址不一样
+     *
+     * @param mirror
+     * @param reason
+     */
+    public synchronized void disable(Mirror mirror, String reason) {
+        if (mirror.disabledReason == null) {
+            mirror.disabledReason = reason;
+            log.error("不再使用下载源：" + mirror.url + "，原因：" + reason);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Mirror mirror : mirrors) {
+            sb.append("\n  ").append(mirror);
+        }
+        return sb.toString();
+    }
+}
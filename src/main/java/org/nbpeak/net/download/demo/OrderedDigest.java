@@ -0,0 +1,158 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按文件顺序算摘要：SHA-256这类摘要只能从头到尾按顺序算，写文件的线程每写一块就交过来。
+ * 正好接在已算部分后面的数据直接算；乱序到达的只记下范围，等前面的数据算完后再从文件读回来算，
+ * 这时数据刚写过，基本都在页缓存里，不会真的去读磁盘。
+ * 多个线程同时交数据时，拿不到锁的线程不等待，只记下范围，由持有锁的线程或最后的finish读回来算
+ */
+@Slf4j
+public class OrderedDigest {
+    // 每次交数据时最多从文件读回多少，避免一个线程一次读回太多，挡住其他线程
+    private static final int DRAIN_BUDGET = 1024 * 1024;
+    private final MessageDigest digest;
+    private final ReentrantLock lock = new ReentrantLock();
+    // 已经写到文件里但还没算的范围
+    private final RangeIndex pending = new RangeIndex();
+    private volatile FileChannel readBack;
+    private ByteBuffer readBuffer;
+    // 已经算到的位置，只在持有锁时修改
+    private long position;
+    private long readBackBytes;
+
+    public OrderedDigest(ExpectedDigest expected) {
+        this.digest = expected.newDigest();
+    }
+
+    /**
+     * 设置读回乱序数据用的文件
+     *
+     * @param readBack
+     */
+    public void setReadBack(FileChannel readBack) {
+        this.readBack = readBack;
+    }
+
+    /**
+     * 交一块已经写到文件里的数据
+     *
+     * @param pos 数据在文件中的位置
+     * @param buf
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    public void update(long pos, byte[] buf, int off, int len) throws IOException {
+        update(pos, ByteBuffer.wrap(buf, off, len));
+    }
+
+    /**
+     * 交一块已经写到文件里的数据，不会改变data的位置
+     *
+     * @param pos  数据在文件中的位置
+     * @param data
+     * @throws IOException
+     */
+    public void update(long pos, ByteBuffer data) throws IOException {
+        int len = data.remaining();
+        if (len == 0) {
+            return;
+        }
+        if (!lock.tryLock()) {
+            pending.add(pos, pos + len - 1);
+            return;
+        }
+        try {
+            if (pos <= position && pos + len > position) {
+                ByteBuffer slice = data.duplicate();
+                slice.position(slice.position() + (int) (position - pos));
+                digest.update(slice);
+                position = pos + len;
+            } else if (pos > position) {
+                pending.add(pos, pos + len - 1);
+            }
+            drain(DRAIN_BUDGET);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 记下已经在文件里、这次不会再交过来的范围，比如断点续传时以前下载好的部分，到时从文件读回来算
+     *
+     * @param start
+     * @param end
+     */
+    public void addWritten(long start, long end) {
+        pending.add(start, end);
+    }
+
+    /**
+     * 从文件读回紧接在已算部分后面的数据
+     *
+     * @param budget 最多读多少
+     * @throws IOException
+     */
+    private void drain(long budget) throws IOException {
+        FileChannel channel = readBack;
+        while (budget > 0 && channel != null && pending.contains(position)) {
+            long end = pending.nextMissing(position, Long.MAX_VALUE)[0];
+            if (readBuffer == null) {
+                readBuffer = ByteBuffer.allocate(256 * 1024);
+            }
+            readBuffer.clear();
+            readBuffer.limit((int) Math.min(readBuffer.capacity(), Math.min(end - position, budget)));
+            int n = channel.read(readBuffer, position);
+            if (n <= 0) {
+                throw new IOException("读回文件时数据不够：" + position);
+            }
+            readBuffer.flip();
+            digest.update(readBuffer);
+            position += n;
+            readBackBytes += n;
+            budget -= n;
+        }
+    }
+
+    /**
+     * 算完剩下的部分，得到摘要
+     *
+     * @param size 文件大小，不知道时传-1，这时只要没有缺口就算完整
+     * @return 文件没有完整算完时返回null
+     * @throws IOException
+     */
+    public byte[] finish(long size) throws IOException {
+        lock.lock();
+        try {
+            drain(Long.MAX_VALUE);
+            // 还有没读回来的部分，或者后面还有乱序到达的数据，说明中间有缺口
+            boolean complete = !pending.contains(position)
+                    && (size >= 0 ? position == size : pending.nextMissing(position, Long.MAX_VALUE)[1] == Long.MAX_VALUE - 1);
+            log.info("摘要计算结束：" + position + " 字节，其中从文件读回 " + readBackBytes + " 字节");
+            if (!complete) {
+                log.error("摘要没有覆盖整个文件，只算到：" + position + "/" + size);
+                return null;
+            }
+            return digest.digest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 乱序到达、从文件读回来算的字节数
+     *
+     * @return
+     */
+    public long getReadBackBytes() {
+        return readBackBytes;
+    }
+}
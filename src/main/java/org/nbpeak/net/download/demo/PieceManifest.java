@@ -0,0 +1,210 @@
+package org.nbpeak.net.download.demo;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 分块校验清单：文件按固定大小分块，每块一个摘要。下载时每块写完就校验，出错的块只需要重新下载这一块，不用整个文件重下。
+ * 支持Metalink（RFC 5854）里的&lt;pieces&gt;，以及简单的文本清单：第一行是"算法 块大小"，后面每行一个十六进制摘要
+ */
+public class PieceManifest {
+    private final String algorithm;
+    private final long pieceLength;
+    private final List<byte[]> hashes;
+
+    public PieceManifest(String algorithm, long pieceLength, List<byte[]> hashes) {
+        if (pieceLength <= 0) {
+            throw new IllegalArgumentException("块大小不正确：" + pieceLength);
+        }
+        this.algorithm = ExpectedDigest.algorithmName(algorithm);
+        this.pieceLength = pieceLength;
+        this.hashes = Collections.unmodifiableList(new ArrayList<>(hashes));
+        // 提前检查算法是否可用，不要等到下载时才报错
+        ExpectedDigest.newDigest(this.algorithm);
+    }
+
+    /**
+     * 读取清单文件，以&lt;开头的按Metalink解析，否则按文本清单解析
+     *
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static PieceManifest load(Path path) throws IOException {
+        byte[] content = Files.readAllBytes(path);
+        String text = new String(content, StandardCharsets.UTF_8).trim();
+        if (text.startsWith("<")) {
+            return parseMetalink(new ByteArrayInputStream(content));
+        }
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            throw new IOException("清单是空的：" + path);
+        }
+        String[] head = lines.get(0).split("\\s+");
+        if (head.length < 2) {
+            throw new IOException("清单第一行应该是\"算法 块大小\"：" + lines.get(0));
+        }
+        List<byte[]> hashes = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            hashes.add(ExpectedDigest.fromHex(line));
+        }
+        return new PieceManifest(head[0], Long.parseLong(head[1]), hashes);
+    }
+
+    /**
+     * 解析Metalink，取第一个文件的&lt;pieces length="块大小" type="算法"&gt;&lt;hash&gt;十六进制&lt;/hash&gt;...&lt;/pieces&gt;
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static PieceManifest parseMetalink(InputStream in) throws IOException {
+        Document document;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            // 清单可能来自不可信的服务器，不解析DTD和外部实体
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setExpandEntityReferences(false);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            document = builder.parse(in);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Metalink解析出错了", e);
+        }
+        NodeList piecesList = document.getElementsByTagNameNS("*", "pieces");
+        if (piecesList.getLength() == 0) {
+            throw new IOException("Metalink里没有分块摘要");
+        }
+        Element pieces = (Element) piecesList.item(0);
+        NodeList hashNodes = pieces.getElementsByTagNameNS("*", "hash");
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < hashNodes.getLength(); i++) {
+            hashes.add(ExpectedDigest.fromHex(hashNodes.item(i).getTextContent().trim()));
+        }
+        return new PieceManifest(pieces.getAttribute("type"), Long.parseLong(pieces.getAttribute("length").trim()), hashes);
+    }
+
+    /**
+     * 给已有的文件生成清单，比如发布文件时一起生成
+     *
+     * @param file
+     * @param algorithm
+     * @param pieceLength
+     * @return
+     * @throws IOException
+     */
+    public static PieceManifest create(Path file, String algorithm, long pieceLength) throws IOException {
+        String name = ExpectedDigest.algorithmName(algorithm);
+        List<byte[]> hashes = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long start = 0; start < size; start += pieceLength) {
+                hashes.add(hash(channel, ExpectedDigest.newDigest(name), start, Math.min(pieceLength, size - start)));
+            }
+        }
+        return new PieceManifest(name, pieceLength, hashes);
+    }
+
+    /**
+     * 写成文本清单
+     *
+     * @param path
+     * @throws IOException
+     */
+    public void write(Path path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add(algorithm.toLowerCase(Locale.ROOT) + " " + pieceLength);
+        for (byte[] hash : hashes) {
+            lines.add(ExpectedDigest.toHex(hash));
+        }
+        Files.write(path, lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 从文件读出一块算摘要
+     *
+     * @param channel
+     * @param digest
+     * @param start
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    static byte[] hash(FileChannel channel, MessageDigest digest, long start, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, 256 * 1024));
+        long end = start + length;
+        while (start < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - start));
+            int n = channel.read(buffer, start);
+            if (n <= 0) {
+                throw new IOException("读文件时数据不够：" + start);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            start += n;
+        }
+        return digest.digest();
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getPieceLength() {
+        return pieceLength;
+    }
+
+    public int getPieceCount() {
+        return hashes.size();
+    }
+
+    public byte[] getHash(int piece) {
+        return hashes.get(piece);
+    }
+
+    /**
+     * 检查清单和文件大小是否对得上
+     *
+     * @param fileSize
+     * @return
+     */
+    public boolean matches(long fileSize) {
+        return fileSize >= 0 && (fileSize + pieceLength - 1) / pieceLength == hashes.size();
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + "，块大小：" + pieceLength + "，块数：" + hashes.size();
+    }
+}
@@ -0,0 +1,124 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * 按分块校验清单校验下载的文件：下载线程每写完一段就告诉它，段内所有数据都到齐的块马上从文件读回来校验，
+ * 刚写过的数据基本都在页缓存里。校验不通过的块记下来，下载结束后只重新下载这些块
+ */
+@Slf4j
+public class PieceVerifier {
+    private final PieceManifest manifest;
+    private final long fileSize;
+    // 已经写到文件里的范围
+    private final RangeIndex written = new RangeIndex();
+    // 已经校验过（或者正在校验）的块
+    private final BitSet checked = new BitSet();
+    // 校验不通过的块
+    private final BitSet bad = new BitSet();
+    private volatile FileChannel file;
+    private int passedCount;
+
+    public PieceVerifier(PieceManifest manifest, long fileSize) {
+        this.manifest = manifest;
+        this.fileSize = fileSize;
+    }
+
+    public void setFile(FileChannel file) {
+        this.file = file;
+    }
+
+    /**
+     * 一段数据已经写到文件里，校验这段数据补齐的块
+     *
+     * @param start 开始位置
+     * @param end   结束位置，包含在内
+     * @throws IOException
+     */
+    public void onWritten(long start, long end) throws IOException {
+        if (end < start) {
+            return;
+        }
+        long pieceLength = manifest.getPieceLength();
+        int first = (int) (start / pieceLength);
+        int last = (int) Math.min(end / pieceLength, manifest.getPieceCount() - 1);
+        List<Integer> ready = new ArrayList<>();
+        synchronized (this) {
+            written.add(start, end);
+            for (int i = first; i <= last; i++) {
+                // 先标记为已校验，其他线程不会重复校验同一块
+                if (!checked.get(i) && written.covers(pieceStart(i), pieceEnd(i))) {
+                    checked.set(i);
+                    ready.add(i);
+                }
+            }
+        }
+        // 读文件和算摘要不用持有锁，多个线程可以同时校验各自的块
+        for (int i : ready) {
+            long pieceStart = pieceStart(i);
+            MessageDigest digest = ExpectedDigest.newDigest(manifest.getAlgorithm());
+            byte[] actual = PieceManifest.hash(file, digest, pieceStart, pieceEnd(i) - pieceStart + 1);
+            boolean passed = MessageDigest.isEqual(manifest.getHash(i), actual);
+            synchronized (this) {
+                if (passed) {
+                    passedCount++;
+                } else {
+                    bad.set(i);
+                }
+            }
+            if (!passed) {
+                log.error("第 " + i + " 块校验失败：" + pieceStart + "-" + pieceEnd(i));
+            }
+        }
+    }
+
+    /**
+     * 取出校验失败的块对应的范围，相邻的块合并成一个范围。取出后这些块重新变成未校验，重新下载写入后会再次校验
+     *
+     * @return {开始位置, 结束位置}，都包含在内
+     */
+    public synchronized List<long[]> takeBadRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        for (int i = bad.nextSetBit(0); i >= 0; ) {
+            int next = bad.nextClearBit(i);
+            ranges.add(new long[]{pieceStart(i), pieceEnd(next - 1)});
+            checked.clear(i, next);
+            i = bad.nextSetBit(next);
+        }
+        bad.clear();
+        return ranges;
+    }
+
+    /**
+     * 是否所有块都校验通过了
+     *
+     * @return
+     */
+    public synchronized boolean isAllPassed() {
+        return passedCount == manifest.getPieceCount() && bad.isEmpty();
+    }
+
+    public synchronized int getPassedCount() {
+        return passedCount;
+    }
+
+    private long pieceStart(int piece) {
+        return piece * manifest.getPieceLength();
+    }
+
+    private long pieceEnd(int piece) {
+        return Math.min(pieceStart(piece) + manifest.getPieceLength(), fileSize) - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "通过：" + passedCount + "/" + manifest.getPieceCount() + "，失败：" + bad.cardinality();
+    }
+}
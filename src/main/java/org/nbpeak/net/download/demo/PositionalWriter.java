@@ -0,0 +1,88 @@
+package org.nbpeak.net.download.demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 定位写入：多个下载任务共用一个FileChannel，每个任务按自己的偏移量直接写目标文件，不需要临时文件和合并。
+ * FileChannel的write(ByteBuffer, long)不会修改通道的position，所以多线程同时调用是安全的。
+ */
+public class PositionalWriter implements Closeable {
+    private final Path path;
+    private final FileChannel channel;
+
+    public PositionalWriter(Path path) throws IOException {
+        this.path = path;
+        // 不能用TRUNCATE_EXISTING，断点续传时要保留已经写好的内容
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    /**
+     * 预分配文件大小，文件大小未知时不处理
+     *
+     * @param size
+     * @throws IOException
+     */
+    public void preallocate(long size) throws IOException {
+        if (size <= 0) {
+            return;
+        }
+        // RandomAccessFile.setLength在大多数文件系统上只修改元数据，比写满0快得多
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(path.toFile(), "rw")) {
+            randomAccessFile.setLength(size);
+        }
+    }
+
+    /**
+     * 把buf中的内容写到文件的position位置
+     *
+     * @param position 文件中的偏移量
+     * @param buf
+     * @param offset
+     * @param len
+     * @throws IOException
+     */
+    public void write(long position, byte[] buf, int offset, int len) throws IOException {
+        write(position, ByteBuffer.wrap(buf, offset, len));
+    }
+
+    /**
+     * 把buffer中剩余的内容写到文件的position位置，一次write不一定能写完，所以要循环写
+     *
+     * @param position 文件中的偏移量
+     * @param buffer
+     * @throws IOException
+     */
+    public void write(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * 把写入的数据刷到磁盘
+     *
+     * @throws IOException
+     */
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
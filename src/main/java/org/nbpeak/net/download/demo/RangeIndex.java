@@ -0,0 +1,254 @@
+package org.nbpeak.net.download.demo;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 已完成范围的索引：用两个有序的long数组保存互不重叠、互不相邻的区间（开始位置和结束位置都包含在内）。
+ * 几百GB的文件也只有已完成区间的个数那么多项，添加、查询下一个缺失的范围都是二分查找，
+ * 下载线程和断点记录共用这一个索引来判断哪些数据已经写好了。
+ */
+public class RangeIndex {
+    private long[] starts;
+    private long[] ends;
+    private int size;
+    // 所有区间的总长度
+    private long coveredSize;
+
+    public RangeIndex() {
+        this(16);
+    }
+
+    public RangeIndex(int initialCapacity) {
+        int capacity = Math.max(4, initialCapacity);
+        this.starts = new long[capacity];
+        this.ends = new long[capacity];
+    }
+
+    /**
+     * 添加一个已完成的范围，和已有的区间重叠或相邻时合并
+     *
+     * @param start 开始位置
+     * @param end   结束位置，包含在内
+     */
+    public synchronized void add(long start, long end) {
+        if (end < start) {
+            return;
+        }
+        // 第一个可能合并的区间：结束位置不早于start-1
+        int lo = lowerBound(ends, start - 1);
+        // 最后一个可能合并的区间：开始位置不晚于end+1
+        int hi = upperBound(starts, end + 1) - 1;
+        if (lo > hi) {
+            insert(lo, start, end);
+            coveredSize += end - start + 1;
+            return;
+        }
+        long newStart = Math.min(start, starts[lo]);
+        long newEnd = Math.max(end, ends[hi]);
+        for (int i = lo; i <= hi; i++) {
+            coveredSize -= ends[i] - starts[i] + 1;
+        }
+        starts[lo] = newStart;
+        ends[lo] = newEnd;
+        int removed = hi - lo;
+        if (removed > 0) {
+            System.arraycopy(starts, hi + 1, starts, lo + 1, size - hi - 1);
+            System.arraycopy(ends, hi + 1, ends, lo + 1, size - hi - 1);
+            size -= removed;
+        }
+        coveredSize += newEnd - newStart + 1;
+    }
+
+    private void insert(int index, long start, long end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        System.arraycopy(starts, index, starts, index + 1, size - index);
+        System.arraycopy(ends, index, ends, index + 1, size - index);
+        starts[index] = start;
+        ends[index] = end;
+        size++;
+    }
+
+    /**
+     * 某个位置是否已完成
+     *
+     * @param pos
+     * @return
+     */
+    public synchronized boolean contains(long pos) {
+        int i = upperBound(starts, pos) - 1;
+        return i >= 0 && ends[i] >= pos;
+    }
+
+    /**
+     * 整个范围是否都已完成
+     *
+     * @param start
+     * @param end   包含在内
+     * @return
+     */
+    public synchronized boolean covers(long start, long end) {
+        int i = upperBound(starts, start) - 1;
+        return i >= 0 && ends[i] >= end;
+    }
+
+    /**
+     * 从from开始找下一个缺失的范围
+     *
+     * @param from  从哪里开始找
+     * @param limit 文件大小，缺失的范围不超过limit-1
+     * @return {开始位置, 结束位置}，都包含在内，没有缺失时返回null
+     */
+    public synchronized long[] nextMissing(long from, long limit) {
+        int i = upperBound(starts, from) - 1;
+        if (i >= 0 && ends[i] >= from) {
+            from = ends[i] + 1;
+        }
+        i++;
+        if (from >= limit) {
+            return null;
+        }
+        long gapEnd = i < size ? Math.min(starts[i] - 1, limit - 1) : limit - 1;
+        return new long[]{from, gapEnd};
+    }
+
+    /**
+     * 所有缺失的范围
+     *
+     * @param limit 文件大小
+     * @return
+     */
+    public synchronized List<long[]> missing(long limit) {
+        List<long[]> missing = new ArrayList<>();
+        long[] range;
+        long from = 0;
+        while ((range = nextMissing(from, limit)) != null) {
+            missing.add(range);
+            from = range[1] + 1;
+        }
+        return missing;
+    }
+
+    public synchronized long getCoveredSize() {
+        return coveredSize;
+    }
+
+    /**
+     * 区间个数
+     *
+     * @return
+     */
+    public synchronized int getRangeCount() {
+        return size;
+    }
+
+    /**
+     * 所有区间的拷贝
+     *
+     * @return {开始位置, 结束位置}的列表
+     */
+    public synchronized List<long[]> ranges() {
+        List<long[]> ranges = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ranges.add(new long[]{starts[i], ends[i]});
+        }
+        return ranges;
+    }
+
+    /**
+     * 序列化：区间个数，然后每个区间写和上一个区间结尾的差值以及自身长度，都用变长编码，通常每个区间只要几个字节
+     *
+     * @param out
+     * @throws IOException
+     */
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        writeVarLong(out, size);
+        long prevEnd = -1;
+        for (int i = 0; i < size; i++) {
+            writeVarLong(out, starts[i] - prevEnd - 1);
+            writeVarLong(out, ends[i] - starts[i]);
+            prevEnd = ends[i];
+        }
+    }
+
+    /**
+     * 反序列化，读到的区间合并到当前索引
+     *
+     * @param in
+     * @throws IOException
+     */
+    public void readFrom(DataInput in) throws IOException {
+        long count = readVarLong(in);
+        long prevEnd = -1;
+        for (long i = 0; i < count; i++) {
+            long start = prevEnd + 1 + readVarLong(in);
+            long end = start + readVarLong(in);
+            add(start, end);
+            prevEnd = end;
+        }
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("变长整数格式错误");
+    }
+
+    /**
+     * 第一个不小于key的下标
+     */
+    private int lowerBound(long[] array, long key) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (array[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 第一个大于key的下标
+     */
+    private int upperBound(long[] array, long key) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (array[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RangeIndex{ranges=" + size + ", covered=" + coveredSize + "}";
+    }
+}
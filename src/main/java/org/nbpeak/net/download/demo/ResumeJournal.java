@@ -0,0 +1,211 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 断点续传记录：和目标文件放在一起的小文件（目标文件名 + .dtj）。
+ * 文件头记录服务器的校验信息（文件大小、ETag、Last-Modified）和已完成范围的快照（RangeIndex的紧凑格式），
+ * 后面每条记录是一个已经写到磁盘的范围（两个long）。
+ * 记录只追加不修改，每次追加后force，JVM崩溃时最多丢掉最后一条写了一半的记录；正常关闭时把所有记录压缩成新的快照。
+ */
+@Slf4j
+public class ResumeJournal implements Closeable {
+    private static final int MAGIC = 0x44544A32; // DTJ2
+    private static final String SUFFIX = ".dtj";
+
+    private final Path path;
+    private final long fileSize;
+    private final String eTag;
+    private final String lastModified;
+    private final FileChannel channel;
+    // 已完成的范围，下载线程也通过这个索引判断哪些数据已经写好了
+    private final RangeIndex completed;
+    private final ByteBuffer record = ByteBuffer.allocate(16);
+
+    private ResumeJournal(Path path, long fileSize, String eTag, String lastModified, RangeIndex completed) throws IOException {
+        this.path = path;
+        this.fileSize = fileSize;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.completed = completed;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * 打开目标文件的断点记录。记录存在、目标文件还在并且校验信息和服务器一致时，加载已完成的范围；否则重新开始记录
+     *
+     * @param target       目标文件
+     * @param fileSize     服务器返回的文件大小
+     * @param eTag         服务器返回的ETag
+     * @param lastModified 服务器返回的Last-Modified
+     * @return
+     * @throws IOException
+     */
+    public static ResumeJournal open(Path target, long fileSize, String eTag, String lastModified) throws IOException {
+        Path path = target.resolveSibling(target.getFileName() + SUFFIX);
+        RangeIndex completed = Files.exists(target) ? load(path, fileSize, eTag, lastModified) : null;
+        if (completed == null) {
+            completed = new RangeIndex();
+            writeSnapshot(path, fileSize, eTag, lastModified, completed);
+        } else {
+            log.info("加载断点记录：" + path + "，已完成：" + completed.getCoveredSize() + "，区间数：" + completed.getRangeCount());
+        }
+        return new ResumeJournal(path, fileSize, eTag, lastModified, completed);
+    }
+
+    /**
+     * 读取记录文件，校验信息不一致或文件损坏时返回null
+     */
+    private static RangeIndex load(Path path, long fileSize, String eTag, String lastModified) throws IOException {
+        if (Files.notExists(path)) {
+            return null;
+        }
+        try (InputStream inputStream = Files.newInputStream(path);
+             DataInputStream in = new DataInputStream(inputStream)) {
+            if (in.readInt() != MAGIC || in.readLong() != fileSize
+                    || !Objects.equals(in.readUTF(), StringUtils.defaultString(eTag))
+                    || !Objects.equals(in.readUTF(), StringUtils.defaultString(lastModified))) {
+                log.info("服务器上的文件已经变化，断点记录作废：" + path);
+                return null;
+            }
+            RangeIndex ranges = new RangeIndex();
+            ranges.readFrom(in);
+            while (true) {
+                long start, end;
+                try {
+                    start = in.readLong();
+                    end = in.readLong();
+                } catch (EOFException e) {
+                    // 最后一条记录可能只写了一半
+                    break;
+                }
+                if (start >= 0 && end >= start && end < fileSize) {
+                    ranges.add(start, end);
+                }
+            }
+            return ranges;
+        } catch (EOFException e) {
+            log.info("断点记录不完整，重新开始：" + path);
+            return null;
+        }
+    }
+
+    /**
+     * 写文件头和已完成范围的快照。先写临时文件再替换，替换前崩溃的话旧的记录还在
+     */
+    private static void writeSnapshot(Path path, long fileSize, String eTag, String lastModified, RangeIndex completed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeLong(fileSize);
+            out.writeUTF(StringUtils.defaultString(eTag));
+            out.writeUTF(StringUtils.defaultString(lastModified));
+            completed.writeTo(out);
+        }
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 记录一个已经写到磁盘的范围，调用前必须先把目标文件的数据force到磁盘
+     *
+     * @param start 开始位置
+     * @param end   结束位置，包含在内
+     * @throws IOException
+     */
+    public synchronized void record(long start, long end) throws IOException {
+        if (end < start) {
+            return;
+        }
+        record.clear();
+        record.putLong(start).putLong(end).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+        completed.add(start, end);
+    }
+
+    /**
+     * 还没完成的范围
+     *
+     * @return {开始位置, 结束位置}的列表，都包含在内
+     */
+    public List<long[]> getMissing() {
+        return completed.missing(fileSize);
+    }
+
+    /**
+     * 已完成范围的索引，和下载线程共用
+     *
+     * @return
+     */
+    public RangeIndex getIndex() {
+        return completed;
+    }
+
+    public long getCompletedSize() {
+        return completed.getCoveredSize();
+    }
+
+    public boolean isComplete() {
+        return completed.getCoveredSize() == fileSize;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 下载完成后删除记录
+     *
+     * @throws IOException
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * 关闭记录，把追加的记录压缩成快照，下次加载时不用再逐条合并
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        channel.close();
+        writeSnapshot(path, fileSize, eTag, lastModified, completed);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
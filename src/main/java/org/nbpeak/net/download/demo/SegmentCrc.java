@@ -0,0 +1,96 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 分段各自算的CRC32C：每个下载线程一边收数据一边算自己那段的CRC，下载结束后按位置把所有分段的CRC合并成整个文件的CRC。
+ * 断点续传时以前下载好的部分没有CRC，合并时从文件读回来补上
+ */
+@Slf4j
+public class SegmentCrc {
+    // 分段开始位置 -> {长度, CRC}
+    private final TreeMap<Long, long[]> pieces = new TreeMap<>();
+
+    /**
+     * 记下一段数据的CRC
+     *
+     * @param start  开始位置
+     * @param length 长度
+     * @param crc    这段数据的CRC
+     */
+    public synchronized void add(long start, long length, long crc) {
+        if (length > 0) {
+            pieces.put(start, new long[]{length, crc});
+        }
+    }
+
+    /**
+     * 按位置合并，得到整个文件的CRC
+     *
+     * @param file 读回缺口用的文件，为空时有缺口就算不完整
+     * @param size 文件大小，不知道时传-1
+     * @return 按大端序的4个字节，分段有重叠或者缺口补不上时返回null
+     * @throws IOException
+     */
+    public synchronized byte[] finish(FileChannel file, long size) throws IOException {
+        long crc = 0;
+        long pos = 0;
+        long readBack = 0;
+        for (Map.Entry<Long, long[]> piece : pieces.entrySet()) {
+            long start = piece.getKey();
+            if (start < pos) {
+                log.error("分段有重叠：" + start + "，已合并到：" + pos);
+                return null;
+            }
+            if (start > pos) {
+                if (file == null) {
+                    log.error("分段有缺口：" + pos + "-" + (start - 1));
+                    return null;
+                }
+                crc = Crc32c.combine(crc, crcOf(file, pos, start - pos), start - pos);
+                readBack += start - pos;
+            }
+            crc = Crc32c.combine(crc, piece.getValue()[1], piece.getValue()[0]);
+            pos = start + piece.getValue()[0];
+        }
+        if (size >= 0 && pos < size) {
+            if (file == null) {
+                log.error("分段有缺口：" + pos + "-" + (size - 1));
+                return null;
+            }
+            crc = Crc32c.combine(crc, crcOf(file, pos, size - pos), size - pos);
+            readBack += size - pos;
+            pos = size;
+        }
+        if (size >= 0 && pos != size) {
+            log.error("分段超出文件大小：" + pos + "/" + size);
+            return null;
+        }
+        log.info("合并了 " + pieces.size() + " 个分段的CRC，从文件读回 " + readBack + " 字节");
+        return Crc32c.toBytes(crc);
+    }
+
+    private static long crcOf(FileChannel file, long start, long length) throws IOException {
+        Crc32c crc = new Crc32c();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, 256 * 1024));
+        long end = start + length;
+        while (start < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - start));
+            int n = file.read(buffer, start);
+            if (n <= 0) {
+                throw new IOException("读回文件时数据不够：" + start);
+            }
+            buffer.flip();
+            crc.update(buffer);
+            start += n;
+        }
+        return crc.getValue();
+    }
+}
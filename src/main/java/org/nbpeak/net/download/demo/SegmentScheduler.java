@@ -0,0 +1,193 @@
+package org.nbpeak.net.download.demo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 分段调度器：记录每个正在下载的分段当前读到了哪里。
+ * 下载线程空闲时，从剩余最多的分段中间切一刀，把后一半拿过来下载（工作窃取），这样所有连接一直忙到最后一个字节。
+ */
+public class SegmentScheduler {
+    // 剩余不到两倍这个大小的分段就不再切分，分得太小时新请求的开销比省下的时间还多
+    private final long minSplitSize;
+    private final Deque<Segment> pending = new ArrayDeque<>();
+    private final List<Segment> active = new ArrayList<>();
+
+    /**
+     * 分段，startPos到endPos都包含在内。
+     * claimed是下载线程已经认领、正在写的位置，current是已经写好的位置，两者都由下载这个分段的线程推进，
+     * endPos在分段被切分时缩小，都用分段自己的锁保护。切分从claimed往后切，出错时从current往后还回去
+     */
+    public static class Segment {
+        private final long startPos;
+        private long claimed;
+        private long current;
+        private long endPos;
+
+        public Segment(long startPos, long endPos) {
+            this.startPos = startPos;
+            this.claimed = startPos;
+            this.current = startPos;
+            this.endPos = endPos;
+        }
+
+        public long getStartPos() {
+            return startPos;
+        }
+
+        public synchronized long getCurrent() {
+            return current;
+        }
+
+        public synchronized long getEndPos() {
+            return endPos;
+        }
+
+        /**
+         * 还没被认领的字节数，切分时按它挑剩余最多的分段
+         *
+         * @return
+         */
+        public synchronized long remaining() {
+            return endPos - claimed + 1;
+        }
+
+        public synchronized boolean isFinished() {
+            return current > endPos;
+        }
+
+        /**
+         * 下载线程读到n个字节后，先认领再写文件，写好后调用commit。分段被切小后，超出范围的部分不能写，由新分段的线程负责
+         *
+         * @param n 读到的字节数
+         * @return 可以写入的字节数，小于n说明已经到了分段的结尾
+         */
+        public synchronized int claim(int n) {
+            long remaining = endPos - claimed + 1;
+            if (remaining <= 0) {
+                return 0;
+            }
+            int allowed = (int) Math.min(n, remaining);
+            claimed += allowed;
+            return allowed;
+        }
+
+        /**
+         * 认领的字节已经写到文件里。写文件出错时不调用，还给调度器的范围从没写好的地方开始
+         *
+         * @param n 写好的字节数
+         */
+        public synchronized void commit(int n) {
+            current += n;
+        }
+
+        /**
+         * 从剩余部分的中点切开，当前分段保留前一半，返回后一半
+         *
+         * @param minSplitSize
+         * @return 剩余太少不值得切分时返回null
+         */
+        synchronized Segment splitHalf(long minSplitSize) {
+            long remaining = endPos - claimed + 1;
+            if (remaining < minSplitSize * 2) {
+                return null;
+            }
+            long mid = claimed + remaining / 2;
+            Segment upper = new Segment(mid, endPos);
+            endPos = mid - 1;
+            return upper;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return startPos + "-" + endPos + "(" + current + ")";
+        }
+    }
+
+    public SegmentScheduler(long minSplitSize) {
+        this.minSplitSize = Math.max(1, minSplitSize);
+    }
+
+    /**
+     * 添加一个待下载的范围
+     *
+     * @param startPos
+     * @param endPos
+     */
+    public synchronized void add(long startPos, long endPos) {
+        if (endPos >= startPos) {
+            pending.addLast(new Segment(startPos, endPos));
+        }
+    }
+
+    /**
+     * 获取下一个要下载的分段：先分配还没开始的分段，没有了就从剩余最多的活动分段中切一半
+     *
+     * @return 没有可下载的分段时返回null
+     */
+    public synchronized Segment next() {
+        Segment segment = pending.pollFirst();
+        if (segment == null) {
+            segment = steal();
+        }
+        if (segment != null) {
+            active.add(segment);
+        }
+        return segment;
+    }
+
+    private Segment steal() {
+        Segment largest = null;
+        long largestRemaining = 0;
+        for (Segment segment : active) {
+            long remaining = segment.remaining();
+            if (remaining > largestRemaining) {
+                largest = segment;
+                largestRemaining = remaining;
+            }
+        }
+        return largest == null ? null : largest.splitHalf(minSplitSize);
+    }
+
+    /**
+     * 分段下载结束（完成或者被切分后到达新的结尾）
+     *
+     * @param segment
+     */
+    public synchronized void finish(Segment segment) {
+        active.remove(segment);
+    }
+
+    /**
+     * 分段下载失败，把没写好的部分放回去，由其他线程继续下载
+     *
+     * @param segment
+     */
+    public synchronized void giveBack(Segment segment) {
+        active.remove(segment);
+        long current = segment.getCurrent();
+        long endPos = segment.getEndPos();
+        if (current <= endPos) {
+            pending.addLast(new Segment(current, endPos));
+        }
+    }
+
+    /**
+     * 是否还有没下载完的范围
+     *
+     * @return
+     */
+    public synchronized boolean hasRemaining() {
+        if (!pending.isEmpty()) {
+            return true;
+        }
+        for (Segment segment : active) {
+            if (!segment.isFinished()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
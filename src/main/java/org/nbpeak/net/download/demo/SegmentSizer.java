@@ -0,0 +1,103 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.nbpeak.net.download.Utils;
+
+/**
+ * 自适应分段大小：按需生成下一个分段，分段大小根据测得的单连接带宽和往返时间（带宽时延积）调整。
+ * 每个分段都要多花一个RTT等响应头，分段大小取带宽时延积的若干倍，让这部分开销只占很小的比例；
+ * 连接状况好时分段逐步变大，变差时减半；接近文件末尾时按剩余大小平分给各连接，让最后几个分段差不多同时结束。
+ */
+@Slf4j
+public class SegmentSizer {
+    public static final long MIN_SIZE = 256 * 1024;
+    public static final long MAX_SIZE = 64 * 1024 * 1024;
+    // 分段大小取带宽时延积的倍数，等响应头的时间大约只占分段下载时间的十分之一
+    private static final int BDP_MULTIPLE = 10;
+    // 平滑系数，新样本占的比重
+    private static final double ALPHA = 0.3;
+
+    private final long fileSize;
+    private final int connections;
+    private long nextPos;
+    private long segmentSize;
+    // 单连接带宽（字节/秒）和往返时间（毫秒）的平滑值，还没有样本时为0
+    private double bandwidth;
+    private double rttMillis;
+
+    /**
+     * @param fileSize    文件大小
+     * @param connections 同时下载的连接数
+     * @param initialSize 初始分段大小
+     */
+    public SegmentSizer(long fileSize, int connections, long initialSize) {
+        this.fileSize = fileSize;
+        this.connections = Math.max(1, connections);
+        // 文件不大时保证每个连接至少能分到一个分段
+        long perConnection = (fileSize + this.connections - 1) / this.connections;
+        this.segmentSize = clamp(Math.min(initialSize, perConnection));
+    }
+
+    /**
+     * 生成下一个分段
+     *
+     * @return {开始位置, 结束位置}，都包含在内，文件分完了返回null
+     */
+    public synchronized long[] next() {
+        long remaining = fileSize - nextPos;
+        if (remaining <= 0) {
+            return null;
+        }
+        long size = segmentSize;
+        // 收尾阶段：剩余部分按连接数平分，避免最后一个大分段拖住整个下载
+        long tailShare = (remaining + connections - 1) / connections;
+        if (size > tailShare) {
+            size = Math.max(MIN_SIZE, tailShare);
+        }
+        size = Math.min(size, remaining);
+        long[] range = {nextPos, nextPos + size - 1};
+        nextPos += size;
+        return range;
+    }
+
+    /**
+     * 报告一个分段的下载情况，用来调整后面的分段大小
+     *
+     * @param bytes        下载的字节数
+     * @param headerMillis 从发出请求到收到响应头的时间，近似一个RTT
+     * @param totalMillis  从发出请求到读完数据的总时间
+     */
+    public synchronized void report(long bytes, long headerMillis, long totalMillis) {
+        if (bytes <= 0) {
+            // 出错的分段，说明连接状况不好
+            segmentSize = clamp(segmentSize / 2);
+            return;
+        }
+        long transferMillis = Math.max(1, totalMillis - headerMillis);
+        double sample = bytes * 1000.0 / transferMillis;
+        boolean healthy = bandwidth == 0 || sample >= bandwidth / 2;
+        bandwidth = bandwidth == 0 ? sample : bandwidth * (1 - ALPHA) + sample * ALPHA;
+        rttMillis = rttMillis == 0 ? headerMillis : rttMillis * (1 - ALPHA) + headerMillis * ALPHA;
+
+        long old = segmentSize;
+        if (healthy) {
+            // 每次最多翻倍，逐步接近带宽时延积的目标大小
+            long target = (long) (bandwidth * rttMillis / 1000 * BDP_MULTIPLE);
+            segmentSize = clamp(Math.min(segmentSize * 2, Math.max(target, MIN_SIZE)));
+        } else {
+            segmentSize = clamp(segmentSize / 2);
+        }
+        if (old != segmentSize) {
+            log.debug("分段大小：" + Utils.byteToUnit(old) + " -> " + Utils.byteToUnit(segmentSize)
+                    + "，单连接带宽：" + Utils.byteToUnit((long) bandwidth) + "/秒，RTT：" + (long) rttMillis + "ms");
+        }
+    }
+
+    public synchronized long getSegmentSize() {
+        return segmentSize;
+    }
+
+    private static long clamp(long size) {
+        return Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+    }
+}
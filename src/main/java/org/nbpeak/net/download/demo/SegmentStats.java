@@ -0,0 +1,138 @@
+package org.nbpeak.net.download.demo;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 分段统计：每个分段下载用了多久、速度多少、重试了几次，以及最慢的是哪个分段。
+ * 只在分段结束或出错时记录一次，不在读数据的循环里记录。
+ * 每个下载有自己的一份，同时累加到上一级（所有下载的汇总）
+ */
+public class SegmentStats {
+    private final SegmentStats parent;
+    private final LongAdder segments = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Histogram duration = new Histogram("ms");
+    private final Histogram throughput = new Histogram("KB/s");
+    // 速度最慢的分段
+    private long slowestStart = -1;
+    private long slowestEnd = -1;
+    private volatile long slowestRate = Long.MAX_VALUE;
+
+    public SegmentStats() {
+        this(null);
+    }
+
+    /**
+     * @param parent 同时累加到的上一级统计，为空时不累加
+     */
+    public SegmentStats(SegmentStats parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * 记录一个下载结束的分段
+     *
+     * @param startPos 分段开始位置
+     * @param bytes    下载的字节数
+     * @param nanos    从发出请求到读完用的时间
+     */
+    public void record(long startPos, long bytes, long nanos) {
+        if (bytes <= 0) {
+            return;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        // 速度按KB/秒记录，时间太短时按1毫秒算
+        long rate = bytes * 1000 / 1024 / Math.max(1, millis);
+        segments.increment();
+        this.bytes.add(bytes);
+        duration.record(millis);
+        throughput.record(rate);
+        if (rate < slowestRate) {
+            synchronized (this) {
+                if (rate < slowestRate) {
+                    slowestRate = rate;
+                    slowestStart = startPos;
+                    slowestEnd = startPos + bytes - 1;
+                }
+            }
+        }
+        if (parent != null) {
+            parent.record(startPos, bytes, nanos);
+        }
+    }
+
+    /**
+     * 记录一次分段出错后重试（或者交给其他线程接着下载）
+     */
+    public void retry() {
+        retries.increment();
+        if (parent != null) {
+            parent.retry();
+        }
+    }
+
+    public long getSegments() {
+        return segments.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * 分段耗时，单位毫秒
+     *
+     * @return
+     */
+    public Histogram.Snapshot getDuration() {
+        return duration.snapshot();
+    }
+
+    /**
+     * 分段速度，单位KB/秒
+     *
+     * @return
+     */
+    public Histogram.Snapshot getThroughput() {
+        return throughput.snapshot();
+    }
+
+    /**
+     * 速度最慢的分段，格式是“开始-结束”，还没有分段结束时为空
+     *
+     * @return
+     */
+    public synchronized String getSlowestSegment() {
+        return slowestStart < 0 ? null : slowestStart + "-" + slowestEnd + "（" + slowestRate + "KB/s）";
+    }
+
+    public void reset() {
+        segments.reset();
+        retries.reset();
+        bytes.reset();
+        duration.reset();
+        throughput.reset();
+        synchronized (this) {
+            slowestStart = -1;
+            slowestEnd = -1;
+            slowestRate = Long.MAX_VALUE;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentStats{segments=" + getSegments() +
+                ", retries=" + getRetries() +
+                ", bytes=" + getBytes() +
+                ", duration=" + getDuration() +
+                ", throughput=" + getThroughput() +
+                ", slowest=" + getSlowestSegment() +
+                "}";
+    }
+}
@@ -1,34 +1,209 @@
 package org.nbpeak.net.download.demo;
 
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import org.nbpeak.net.download.Utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * 速度统计：下载线程读到数据后累加字节数，每秒算一次速度通知出去。
+ * 计数用LongAdder，多个线程同时累加时各自加到不同的格子里，不会都去抢同一个AtomicLong。
+ * 除了每秒的速度，还有指数加权的平滑速度、按平滑速度估算的剩余时间，以及每个分段各自的速度。
+ * 所有统计共用一个定时线程，不再每个下载一个
+ */
 public class SpeedStatistician {
-    private SpeedNotifyEvent speedNotifyEvent;
-    private AtomicLong counter = new AtomicLong(0);
-    private ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = new ScheduledThreadPoolExecutor(1);
-    private long preCount = 0;
+    // 平滑速度的时间窗口（秒），越大越平稳，对速度变化的反应也越慢
+    private static final double SMOOTHING_SECONDS = 5;
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "speed-statistician");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SpeedNotifyEvent speedNotifyEvent;
+    private final LongAdder counter = new LongAdder();
+    private final Rate rate = new Rate();
+    private final Set<Slot> slots = ConcurrentHashMap.newKeySet();
+    // 本次预计下载的字节数，不知道时为-1
+    private volatile long expectedBytes = -1;
+    private ScheduledFuture<?> tick;
+    private long lastTickNanos;
+
+    /**
+     * 根据计数的变化算速度，只在定时线程里更新
+     */
+    private static class Rate {
+        private long preCount;
+        private volatile long speed;
+        private volatile double smoothed = -1;
+
+        void update(long count, double seconds) {
+            long current = Math.round((count - preCount) / seconds);
+            preCount = count;
+            speed = current;
+            // 按实际间隔算权重，定时线程被耽误时不会让平滑速度跳得太厉害
+            double alpha = 1 - Math.exp(-seconds / SMOOTHING_SECONDS);
+            smoothed = smoothed < 0 ? current : smoothed + alpha * (current - smoothed);
+        }
+    }
+
+    /**
+     * 一个分段的计数，数据同时累加到所属的统计里。分段结束后要关闭
+     */
+    public class Slot implements AutoCloseable {
+        private final String name;
+        private final LongAdder bytes = new LongAdder();
+        private final Rate rate = new Rate();
+
+        private Slot(String name) {
+            this.name = name;
+        }
+
+        public void add(long val) {
+            bytes.add(val);
+            counter.add(val);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * 分段的平滑速度，字节/秒
+         *
+         * @return
+         */
+        public long getSpeed() {
+            return Math.round(Math.max(0, rate.smoothed));
+        }
+
+        @Override
+        public void close() {
+            slots.remove(this);
+        }
+    }
 
     public SpeedStatistician(SpeedNotifyEvent speedNotifyEvent) {
         this.speedNotifyEvent = speedNotifyEvent;
     }
 
     public void add(long val) {
-        counter.addAndGet(val);
+        counter.add(val);
+    }
+
+    /**
+     * 给一个分段单独计数，用来查看每个分段的速度
+     *
+     * @param name 分段的名字，比如下载范围
+     * @return
+     */
+    public Slot newSlot(String name) {
+        Slot slot = new Slot(name);
+        slots.add(slot);
+        return slot;
+    }
+
+    /**
+     * 设置本次预计下载的字节数，用来估算剩余时间。断点续传时只算还没下载的部分
+     *
+     * @param expectedBytes 不知道时传-1
+     */
+    public void setExpectedBytes(long expectedBytes) {
+        this.expectedBytes = expectedBytes;
+    }
+
+    public synchronized void start() {
+        if (tick == null) {
+            lastTickNanos = System.nanoTime();
+            tick = TIMER.scheduleAtFixedRate(this::update, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (tick != null) {
+            tick.cancel(false);
+        }
+    }
+
+    private void update() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastTickNanos) / 1e9);
+        lastTickNanos = now;
+        rate.update(counter.sum(), seconds);
+        for (Slot slot : slots) {
+            slot.rate.update(slot.bytes.sum(), seconds);
+        }
+        speedNotifyEvent.event(rate.speed);
+    }
+
+    /**
+     * 已经统计到的字节数
+     *
+     * @return
+     */
+    public long getTotal() {
+        return counter.sum();
+    }
+
+    /**
+     * 最近一秒的速度，字节/秒
+     *
+     * @return
+     */
+    public long getSpeed() {
+        return rate.speed;
+    }
+
+    /**
+     * 指数加权的平滑速度，字节/秒
+     *
+     * @return
+     */
+    public long getSmoothedSpeed() {
+        return Math.round(Math.max(0, rate.smoothed));
+    }
+
+    /**
+     * 按平滑速度估算的剩余时间
+     *
+     * @return 秒，不知道预计下载多少或者还没有速度时为-1
+     */
+    public long getEtaSeconds() {
+        long expected = expectedBytes;
+        long speed = getSmoothedSpeed();
+        if (expected < 0 || speed <= 0) {
+            return -1;
+        }
+        return Math.max(0, expected - getTotal()) / speed;
     }
 
-    public void start() {
-        if (!scheduledThreadPoolExecutor.isShutdown()) {
-            scheduledThreadPoolExecutor.scheduleAtFixedRate(() -> {
-                long nowCount = counter.get();
-                speedNotifyEvent.event(nowCount - preCount);
-                preCount = nowCount;
-            }, 0, 1, TimeUnit.SECONDS);
+    /**
+     * 正在下载的每个分段的平滑速度，字节/秒
+     *
+     * @return
+     */
+    public Map<String, Long> getSlotSpeeds() {
+        Map<String, Long> speeds = new LinkedHashMap<>();
+        for (Slot slot : slots) {
+            speeds.put(slot.getName(), slot.getSpeed());
         }
+        return speeds;
     }
 
-    public void stop() {
-        scheduledThreadPoolExecutor.shutdown();
+    @Override
+    public String toString() {
+        long eta = getEtaSeconds();
+        return "平滑速度：" + Utils.byteToUnit(getSmoothedSpeed()) + "/秒，剩余时间：" + (eta < 0 ? "未知" : eta + " 秒");
     }
 }
@@ -0,0 +1,54 @@
+package org.nbpeak.net.download.demo;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 虚拟线程（JDK 21及以上）：每个分段一个虚拟线程，阻塞在call.execute()和read()上时不占用平台线程。
+ * 项目还是按1.8编译（Lombok 1.18.12不能在新版本的编译器上运行），所以通过反射调用，运行在旧版本JDK上时不可用。
+ * 注意OkHttp 3内部有synchronized代码块，JDK 24之前虚拟线程在里面阻塞时会占住平台线程。
+ */
+@Slf4j
+public final class VirtualThreads {
+    private static final Method NEW_EXECUTOR = findExecutorFactory();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 当前JDK是否支持虚拟线程
+     *
+     * @return
+     */
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * 每个任务一个虚拟线程的线程池，不支持时返回null
+     *
+     * @return
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        if (NEW_EXECUTOR == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.error("创建虚拟线程池失败：", e);
+            return null;
+        }
+    }
+}
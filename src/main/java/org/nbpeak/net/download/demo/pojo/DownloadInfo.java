@@ -122,7 +122,7 @@ public class DownloadInfo {
     }
 
     public enum Status {
-        WAITING("等待"), RUNNING("运行中"), STOPPED("停止"), FINISHED("完成");
+        WAITING("等待"), RUNNING("运行中"), STOPPED("停止"), FINISHED("完成"), FAILED("失败");
         private String value;
 
         Status(String value) {
@@ -0,0 +1,110 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * 缓冲池：预算用完时阻塞，归还后复用；下载出错时借出去的缓冲都要还回来
+ */
+public class BufferPoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private MockWebServer server;
+
+    @BeforeClass
+    public static void quietLogging() {
+        StrategyBenchmark.quietLogging();
+    }
+
+    @Before
+    public void setUp() {
+        server = new MockWebServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.shutdown();
+    }
+
+    @Test
+    public void acquireBlocksUntilRelease() throws Exception {
+        BufferPool pool = new BufferPool(1024, 2048);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertEquals(2, pool.getAllocated());
+
+        Future<ByteBuffer> waiting = executor.submit(pool::acquire);
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            fail("预算用完时应该阻塞");
+        } catch (TimeoutException expected) {
+            // 还在等
+        }
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer reused = waiting.get(2, TimeUnit.SECONDS);
+        assertSame(first, reused);
+        assertEquals("复用的缓冲要先清空", 0, reused.position());
+        assertEquals(2, pool.getAllocated());
+        pool.release(second);
+        pool.release(reused);
+    }
+
+    @Test
+    public void buffersReturnedWhenSegmentsFail() throws Exception {
+        for (int sliceSize : new int[]{0, 64 * 1024}) {
+            BufferPool pool = new BufferPool(1024 * 1024, 4L * 1024 * 1024);
+            server.setDispatcher(new RangeDispatcher(RangeDispatcher.randomContent(8 * 1024 * 1024)).disconnects(0.6));
+            DownloadTask3 task = new DownloadTask3(server.url("/f/pool.bin").toString());
+            task.setBufferPool(pool);
+            task.setSliceSize(sliceSize);
+            try {
+                task.start(folder.newFolder().getPath());
+            } catch (IOException e) {
+                // 断开太多时下载会失败，这里只关心缓冲有没有还回来
+            }
+            assertAllFree(pool);
+        }
+    }
+
+    /**
+     * 整个预算都能马上借到，说明没有缓冲漏还
+     */
+    private void assertAllFree(BufferPool pool) throws Exception {
+        Future<Void> drain = executor.submit(() -> {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            for (int i = 0; i < pool.getMaxBuffers(); i++) {
+                buffers.add(pool.acquire());
+            }
+            buffers.forEach(pool::release);
+            return null;
+        });
+        try {
+            drain.get(2, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            drain.cancel(true);
+            fail("有缓冲没有还给缓冲池：" + pool);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.nbpeak.net.download.demo;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CRC32C：和标准测试向量一致（RFC 3720附录B.4），分段算完再合并和整体算的结果一样
+ */
+public class Crc32cTest {
+
+    private static long crc(byte[] data, int off, int len) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, off, len);
+        return crc.getValue();
+    }
+
+    private static long crc(byte[] data) {
+        return crc(data, 0, data.length);
+    }
+
+    @Test
+    public void knownVectors() {
+        assertEquals(0xE3069283L, crc("123456789".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(0x8A9136AAL, crc(new byte[32]));
+        byte[] ones = new byte[32];
+        Arrays.fill(ones, (byte) 0xFF);
+        assertEquals(0x62A8AB43L, crc(ones));
+        byte[] ascending = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            ascending[i] = (byte) i;
+        }
+        assertEquals(0x46DD794EL, crc(ascending));
+        assertEquals(0, crc(new byte[0]));
+    }
+
+    @Test
+    public void byteAndArrayUpdatesAgree() {
+        byte[] data = RangeDispatcher.randomContent(1000);
+        Crc32c single = new Crc32c();
+        for (byte b : data) {
+            single.update(b);
+        }
+        assertEquals(crc(data), single.getValue());
+    }
+
+    @Test
+    public void digestIsBigEndianAndResets() {
+        Crc32c crc = new Crc32c();
+        crc.update("123456789".getBytes(StandardCharsets.US_ASCII));
+        assertArrayEquals(new byte[]{(byte) 0xE3, 0x06, (byte) 0x92, (byte) 0x83}, crc.digest());
+        assertEquals(0, crc.getValue());
+    }
+
+    @Test
+    public void combineMatchesWholeCrc() {
+        byte[] data = RangeDispatcher.randomContent(100_000);
+        long whole = crc(data);
+        Random random = new Random(3);
+        int[] splits = {0, 1, 7, 8, 4096, data.length - 1, data.length};
+        for (int split : splits) {
+            long combined = Crc32c.combine(crc(data, 0, split), crc(data, split, data.length - split), data.length - split);
+            assertEquals("切分点" + split, whole, combined);
+        }
+        for (int n = 0; n < 50; n++) {
+            int split = random.nextInt(data.length + 1);
+            long combined = Crc32c.combine(crc(data, 0, split), crc(data, split, data.length - split), data.length - split);
+            assertEquals("切分点" + split, whole, combined);
+        }
+    }
+
+    @Test
+    public void combineManySegmentsInOrder() {
+        byte[] data = RangeDispatcher.randomContent(1 << 20);
+        long combined = crc(data, 0, 0);
+        int pos = 0;
+        Random random = new Random(5);
+        while (pos < data.length) {
+            int len = Math.min(data.length - pos, 1 + random.nextInt(100_000));
+            combined = Crc32c.combine(combined, crc(data, pos, len), len);
+            pos += len;
+        }
+        assertEquals(crc(data), combined);
+    }
+}
@@ -0,0 +1,90 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * 方案三：连接断开时重新下载没写好的部分，下载不完整时start必须抛出异常，不能留下半个文件当成功；
+ * 自适应分段不改调用方设置的分片大小
+ */
+public class DownloadTask3Test {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private MockWebServer server;
+    private RangeDispatcher dispatcher;
+
+    @BeforeClass
+    public static void quietLogging() {
+        StrategyBenchmark.quietLogging();
+    }
+
+    @Before
+    public void setUp() {
+        dispatcher = new RangeDispatcher(RangeDispatcher.randomContent(6 * 1024 * 1024 + 5));
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private String url() {
+        return server.url("/f/task3.bin").toString();
+    }
+
+    @Test
+    public void retriesDisconnectedTasks() throws Exception {
+        dispatcher.disconnects(0.3);
+        for (int sliceSize : new int[]{0, 64 * 1024}) {
+            DownloadTask3 task = new DownloadTask3(url());
+            task.setSliceSize(sliceSize);
+            Path dir = folder.newFolder().toPath();
+            task.start(dir.toString());
+            assertArrayEquals(dispatcher.getContent(), Files.readAllBytes(dir.resolve("task3.bin")));
+        }
+    }
+
+    @Test
+    public void adaptiveRunKeepsConfiguredSliceSize() throws Exception {
+        DownloadTask3 task = new DownloadTask3(url());
+        task.setAdaptiveSegments(true);
+        task.start(folder.newFolder().getPath());
+        assertEquals("自适应分段只在这次下载里用分片", 0, task.getSliceSize());
+
+        task.setAdaptiveSegments(false);
+        Path dir = folder.newFolder().toPath();
+        task.start(dir.toString());
+        assertEquals(0, task.getSliceSize());
+        assertArrayEquals(dispatcher.getContent(), Files.readAllBytes(dir.resolve("task3.bin")));
+    }
+
+    @Test
+    public void incompleteDownloadThrows() throws Exception {
+        dispatcher.disconnects(1);
+        for (int sliceSize : new int[]{0, 64 * 1024}) {
+            DownloadTask3 task = new DownloadTask3(url());
+            task.setSliceSize(sliceSize);
+            try {
+                task.start(folder.newFolder().getPath());
+                fail("每个连接都断开了，下载不可能完成");
+            } catch (IOException e) {
+                // 出错次数到了上限，工作循环的错误交给调用方
+            }
+        }
+    }
+}
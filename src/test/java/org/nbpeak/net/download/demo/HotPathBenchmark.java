@@ -0,0 +1,252 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.mockwebserver.MockWebServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载热点路径的微基准测试：读写缓冲的复制循环、方案三每个分片一个写任务、方案一的合并临时文件、速度统计的累加。运行：
+ * mvn -P benchmark test-compile exec:exec -Djmh.args="HotPathBenchmark"
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+    /**
+     * 本地服务器，创建下载任务时要发HEAD请求
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        MockWebServer server;
+        String url;
+
+        @Setup
+        public void setUp() throws IOException {
+            StrategyBenchmark.quietLogging();
+            server = new MockWebServer();
+            server.setDispatcher(new RangeDispatcher(RangeDispatcher.randomContent(1024 * 1024)));
+            server.start();
+            url = server.url("/bench.bin").toString();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            server.close();
+        }
+    }
+
+    /**
+     * 复制循环：和下载线程一样，从输入流读到缓冲里，统计速度，再按位置写到目标文件
+     */
+    @State(Scope.Thread)
+    public static class CopyState {
+        @Param({"8192", "65536", "1048576"})
+        int bufferSize;
+        byte[] content = RangeDispatcher.randomContent(16 * 1024 * 1024);
+        byte[] buf;
+        Path target;
+        PositionalWriter writer;
+        SpeedStatistician speedStatistician = new SpeedStatistician(speed -> {
+        });
+
+        @Setup
+        public void setUp() throws IOException {
+            buf = new byte[bufferSize];
+            target = Files.createTempFile("copybench", ".bin");
+            writer = new PositionalWriter(target);
+            writer.preallocate(content.length);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            writer.close();
+            Files.deleteIfExists(target);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long copyLoop(CopyState state) throws IOException {
+        InputStream inputStream = new ByteArrayInputStream(state.content);
+        int n;
+        long nread = 0L;
+        while ((n = inputStream.read(state.buf)) > 0) {
+            state.speedStatistician.add(n);
+            state.writer.write(nread, state.buf, 0, n);
+            nread += n;
+        }
+        return nread;
+    }
+
+    /**
+     * 方案三写文件：下载线程每填满一个分片就交给磁盘线程池，每块一个写任务，写完把缓冲还给缓冲池。
+     * 和下载线程自己写文件对比，看交给磁盘线程池多花多少时间
+     */
+    @State(Scope.Benchmark)
+    public static class SliceWriteState {
+        private static final int SLICE_SIZE = 256 * 1024;
+        private static final int SLICES = 64;
+        @Param({"diskPool", "inline"})
+        String writeMode;
+        DownloadTask3 task;
+        BufferPool bufferPool;
+        PositionalWriter writer;
+        Path target;
+        byte[] slice = RangeDispatcher.randomContent(SLICE_SIZE);
+        Method submitWrite;
+        Method awaitWrites;
+
+        @Setup
+        public void setUp(ServerState server) throws IOException, ReflectiveOperationException {
+            task = new DownloadTask3(server.url);
+            // 预算比分片总数小，下载线程会等写任务还缓冲，和下载时一样
+            bufferPool = new BufferPool(SLICE_SIZE, 16L * SLICE_SIZE);
+            task.setBufferPool(bufferPool);
+            target = Files.createTempFile("slicebench", ".bin");
+            writer = new PositionalWriter(target);
+            writer.preallocate((long) SLICES * SLICE_SIZE);
+            // 写文件的方法都是私有的，文件平时在start里打开，基准测试里通过反射设置和调用，和下载时走的是同一段代码
+            Field fileWriter = DownloadTask3.class.getDeclaredField("fileWriter");
+            fileWriter.setAccessible(true);
+            fileWriter.set(task, writer);
+            submitWrite = DownloadTask3.class.getDeclaredMethod("submitWrite", DownloadTask3.BuffData.class);
+            submitWrite.setAccessible(true);
+            awaitWrites = DownloadTask3.class.getDeclaredMethod("awaitWrites");
+            awaitWrites.setAccessible(true);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            writer.close();
+            Files.deleteIfExists(target);
+        }
+    }
+
+    /**
+     * 写完一个16MB的分段：从缓冲池借缓冲，填满分片后写到文件
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void sliceWrites(SliceWriteState state) throws IOException, InterruptedException, ReflectiveOperationException {
+        boolean inline = "inline".equals(state.writeMode);
+        for (int i = 0; i < SliceWriteState.SLICES; i++) {
+            long startPos = (long) i * SliceWriteState.SLICE_SIZE;
+            DownloadTask3.BuffData buffData = state.task.new BuffData(i, startPos, startPos + SliceWriteState.SLICE_SIZE - 1, state.bufferPool.acquire());
+            buffData.write(state.slice);
+            if (inline) {
+                state.writer.write(startPos, buffData.flip());
+                buffData.release();
+            } else {
+                state.submitWrite.invoke(state.task, buffData);
+            }
+        }
+        if (!inline) {
+            state.awaitWrites.invoke(state.task);
+        }
+    }
+
+    /**
+     * 合并：每次调用前重新生成8个4MB的临时文件，合并时会把它们删掉
+     */
+    @State(Scope.Benchmark)
+    public static class MergeState {
+        private static final int PARTS = 8;
+        private static final int PART_SIZE = 4 * 1024 * 1024;
+        DownloadTask1 task;
+        Method merge;
+        Path dir;
+        byte[] part = RangeDispatcher.randomContent(PART_SIZE);
+        Optional<List<DownloadTask1.Result>> results;
+
+        @Setup(Level.Trial)
+        public void setUp(ServerState server) throws IOException, NoSuchMethodException {
+            task = new DownloadTask1(server.url);
+            dir = Files.createTempDirectory("mergebench");
+            task.getDownloadInfo().setLocalPath(dir.resolve("merged.bin"));
+            // merge是私有方法，基准测试里通过反射调用，和下载时走的是同一段代码
+            merge = DownloadTask1.class.getDeclaredMethod("merge", Optional.class);
+            merge.setAccessible(true);
+        }
+
+        @Setup(Level.Invocation)
+        public void writeParts() throws IOException {
+            List<DownloadTask1.Result> list = new ArrayList<>();
+            for (int i = 0; i < PARTS; i++) {
+                Path path = dir.resolve(i + ".dt");
+                Files.write(path, part);
+                list.add(task.new Result(i, path));
+            }
+            results = Optional.of(list);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(task.getDownloadInfo().getLocalPath());
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 20)
+    public void merge(MergeState state) throws IllegalAccessException, InvocationTargetException {
+        state.merge.invoke(state.task, state.results);
+    }
+
+    /**
+     * 速度统计：8个线程同时累加，和所有线程抢一个AtomicLong对比
+     */
+    @State(Scope.Benchmark)
+    public static class SpeedState {
+        SpeedStatistician speedStatistician = new SpeedStatistician(speed -> {
+        });
+        AtomicLong atomicCounter = new AtomicLong();
+    }
+
+    @Benchmark
+    @Threads(8)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void speedStatisticianAdd(SpeedState state) {
+        state.speedStatistician.add(8192);
+    }
+
+    @Benchmark
+    @Threads(8)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void atomicLongAdd(SpeedState state, Blackhole blackhole) {
+        blackhole.consume(state.atomicCounter.addAndGet(8192));
+    }
+}
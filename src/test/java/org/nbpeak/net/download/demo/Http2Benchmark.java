@@ -0,0 +1,78 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockWebServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * HTTP/2多路复用和每个分段一个HTTP/1.1连接的对比，两种方式用同样的分段（DownloadTask1的定位写入模式，按分段数平分文件）。
+ * 本地没有TLS，HTTP/2用明文的H2_PRIOR_KNOWLEDGE。手动运行：
+ * Http2Benchmark [文件大小MB，默认64] [分段数，默认16] [每个响应每10ms发多少KB，默认0不限速] [轮数，默认3]
+ */
+public class Http2Benchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int segments = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int throttleKb = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        RangeDispatcher dispatcher = new RangeDispatcher(RangeDispatcher.randomContent(sizeMb * 1024 * 1024));
+        if (throttleKb > 0) {
+            dispatcher.throttle(throttleKb * 1024L, 10);
+        }
+        HttpClientFactory.ensureCapacity(segments);
+        Path saveTo = Files.createTempDirectory("h2bench");
+        try (MockWebServer http1Server = new MockWebServer();
+             MockWebServer http2Server = new MockWebServer()) {
+            http1Server.setDispatcher(dispatcher);
+            http1Server.start();
+            http2Server.setDispatcher(dispatcher);
+            http2Server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+            http2Server.start();
+            String http1Url = http1Server.url("/bench.bin").toString();
+            String http2Url = http2Server.url("/bench.bin").toString();
+            OkHttpClient http1Client = HttpClientFactory.withProtocols(Protocol.HTTP_1_1);
+            OkHttpClient http2Client = HttpClientFactory.withProtocols(Protocol.H2_PRIOR_KNOWLEDGE);
+
+            System.out.println("文件 " + sizeMb + "MB，分段数 " + segments + "，限速 " + (throttleKb > 0 ? throttleKb + "KB/10ms" : "无"));
+            for (int round = 1; round <= rounds; round++) {
+                run("HTTP/1.1 每段一个连接", round, dispatcher, saveTo, segments, 0, http1Url, http1Client);
+                run("HTTP/2 1个连接", round, dispatcher, saveTo, segments, 1, http2Url, http2Client);
+                run("HTTP/2 2个连接", round, dispatcher, saveTo, segments, 2, http2Url, http2Client);
+            }
+        } finally {
+            Files.deleteIfExists(saveTo.resolve("bench.bin"));
+            Files.deleteIfExists(saveTo);
+        }
+    }
+
+    private static void run(String name, int round, RangeDispatcher dispatcher, Path saveTo, int segments, int http2Connections,
+                            String url, OkHttpClient client) throws IOException, InterruptedException {
+        Path target = saveTo.resolve("bench.bin");
+        Files.deleteIfExists(target);
+        // 每次都从新建连接开始，新建连接数才有可比性，统计里包括HEAD请求
+        HttpClientFactory.get().connectionPool().evictAll();
+        HttpClientFactory.getStats().reset();
+        DownloadTask1 task = new DownloadTask1(url, client);
+        task.setPositionalWrite(true);
+        if (http2Connections > 0) {
+            task.setHttp2(http2Connections, segments / http2Connections);
+        } else {
+            task.setThreadCount(segments);
+        }
+        long start = System.nanoTime();
+        task.start(saveTo.toString());
+        long millis = (System.nanoTime() - start) / 1000000;
+        boolean ok = Arrays.equals(dispatcher.getContent(), Files.readAllBytes(target));
+        double mbPerSecond = dispatcher.getContent().length / 1024.0 / 1024.0 / Math.max(1, millis) * 1000;
+        System.out.println(String.format("第%d轮 %-16s 耗时 %5d ms，%8.1f MB/s，协议 %s，%s，内容%s",
+                round, name, millis, mbPerSecond, task.getProtocol(), HttpClientFactory.getStats(), ok ? "正确" : "错误"));
+    }
+}
@@ -0,0 +1,123 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nbpeak.net.download.demo.pojo.DownloadInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * 下载过程中服务器上的文件被替换：带If-Range的分段请求收到200和整个文件时，不能把整个文件当成分段写进去
+ */
+public class IfRangeTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private MockWebServer server;
+    private RangeDispatcher dispatcher;
+
+    @BeforeClass
+    public static void quietLogging() {
+        StrategyBenchmark.quietLogging();
+    }
+
+    @Before
+    public void setUp() {
+        dispatcher = new RangeDispatcher(RangeDispatcher.randomContent(6 * 1024 * 1024 + 5));
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private String url() {
+        return server.url("/f/changed.bin").toString();
+    }
+
+    @Test
+    public void unchangedFileSendsIfRange() throws Exception {
+        DownloadTask1 task = new DownloadTask1(url());
+        task.setResume(true);
+        Path dir = folder.newFolder().toPath();
+        task.start(dir.toString());
+        assertEquals(DownloadInfo.Status.FINISHED, task.getDownloadInfo().getStatus());
+        assertArrayEquals(dispatcher.getContent(), Files.readAllBytes(dir.resolve("changed.bin")));
+        RecordedRequest head = server.takeRequest();
+        RecordedRequest get = server.takeRequest();
+        assertEquals("HEAD", head.getMethod());
+        assertNotNull("分段请求要带If-Range", get.getHeader("If-Range"));
+    }
+
+    @Test
+    public void downloadTask1Fails() throws Exception {
+        for (int mode = 0; mode < 3; mode++) {
+            DownloadTask1 task = new DownloadTask1(url());
+            task.setPositionalWrite(mode == 1);
+            task.setWorkStealing(mode == 2);
+            dispatcher.changeETag("\"v" + mode + "\"");
+            task.start(folder.newFolder().getPath());
+            assertEquals("模式" + mode, DownloadInfo.Status.FAILED, task.getDownloadInfo().getStatus());
+        }
+    }
+
+    @Test
+    public void resumeJournalDroppedWhenFileChanged() throws Exception {
+        DownloadTask1 task = new DownloadTask1(url());
+        task.setResume(true);
+        dispatcher.changeETag("\"v2\"");
+        Path dir = folder.newFolder().toPath();
+        task.start(dir.toString());
+        assertEquals(DownloadInfo.Status.FAILED, task.getDownloadInfo().getStatus());
+        assertFalse("文件变了，断点记录不能留着下次用", Files.exists(dir.resolve("changed.bin.dtj")));
+    }
+
+    @Test
+    public void downloadTask2Throws() throws Exception {
+        for (boolean positional : new boolean[]{false, true}) {
+            DownloadTask2 task = new DownloadTask2(url());
+            task.setPositionalWrite(positional);
+            dispatcher.changeETag("\"v" + positional + "\"");
+            assertAborted(() -> task.start(folder.newFolder().getPath()));
+        }
+    }
+
+    @Test
+    public void downloadTask3Throws() throws Exception {
+        for (int mode = 0; mode < 3; mode++) {
+            DownloadTask3 task = new DownloadTask3(url());
+            task.setSliceSize(mode == 1 ? 64 * 1024 : 0);
+            task.setMappedWrite(mode == 2);
+            dispatcher.changeETag("\"v" + mode + "\"");
+            assertAborted(() -> task.start(folder.newFolder().getPath()));
+        }
+    }
+
+    interface Download {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private static void assertAborted(Download download) throws InterruptedException {
+        try {
+            download.run();
+            fail("服务器上的文件变了，下载应该中止");
+        } catch (IOException e) {
+            assertEquals("服务器上的文件已经变化，下载已中止", e.getMessage());
+        }
+    }
+}
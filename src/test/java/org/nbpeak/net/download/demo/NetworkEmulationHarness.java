@@ -0,0 +1,217 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * 本地网络模拟：用MockWebServer提供文件，按不同的网络情况（限速、往返时间、卡顿、断开、数据出错、不支持Range、分块传输）
+ * 把每种下载方案都跑一遍，检查下载的内容，把耗时、速度和堆内存峰值写到CSV里，不依赖外网就能对比改动前后的结果。手动运行：
+ * NetworkEmulationHarness [文件大小MB，默认16] [输出文件，默认target/network-matrix.csv] [每次下载的超时秒数，默认120]
+ */
+public class NetworkEmulationHarness {
+    // MockWebServer每个请求都打一行java.util.logging日志，调高级别；logger是弱引用，要留着引用设置才不会丢
+    private static final java.util.logging.Logger MOCK_SERVER_LOGGER = java.util.logging.Logger.getLogger(MockWebServer.class.getName());
+
+    /**
+     * 模拟的网络情况
+     */
+    enum Profile {
+        // 本机直连，不加任何限制
+        LAN,
+        // 每个连接限速6.4MB/秒
+        BANDWIDTH,
+        // 每个响应延迟50ms发送响应头，再加上限速
+        RTT,
+        // 20%的响应发完响应头后卡住500ms
+        STALLS,
+        // 10%的响应体发到一半时断开连接
+        DISCONNECTS,
+        // 10%的响应体里有一个字节出错
+        CORRUPTS,
+        // 不支持Range，只能单连接下载
+        NO_RANGES,
+        // 分块传输，不知道文件大小
+        CHUNKED;
+
+        RangeDispatcher apply(RangeDispatcher dispatcher) {
+            switch (this) {
+                case BANDWIDTH:
+                    return dispatcher.throttle(64 * 1024, 10);
+                case RTT:
+                    return dispatcher.delay(50).throttle(64 * 1024, 10);
+                case STALLS:
+                    return dispatcher.stalls(0.2, 500);
+                case DISCONNECTS:
+                    return dispatcher.disconnects(0.1);
+                case CORRUPTS:
+                    return dispatcher.corrupts(0.1);
+                case NO_RANGES:
+                    return dispatcher.noRanges();
+                case CHUNKED:
+                    return dispatcher.chunked();
+                default:
+                    return dispatcher;
+            }
+        }
+    }
+
+    /**
+     * 参与对比的下载方案
+     */
+    enum Strategy {
+        TASK1_TEMP_FILES,
+        TASK1_POSITIONAL,
+        TASK1_STEALING,
+        TASK1_SPECULATIVE,
+        TASK2,
+        TASK3,
+        ASYNC;
+
+        void download(String url, Path saveTo) throws Exception {
+            switch (this) {
+                case TASK1_TEMP_FILES:
+                    new DownloadTask1(url).start(saveTo.toString());
+                    break;
+                case TASK1_POSITIONAL: {
+                    DownloadTask1 task = new DownloadTask1(url);
+                    task.setPositionalWrite(true);
+                    task.start(saveTo.toString());
+                    break;
+                }
+                case TASK1_STEALING: {
+                    DownloadTask1 task = new DownloadTask1(url);
+                    task.setWorkStealing(true);
+                    task.start(saveTo.toString());
+                    break;
+                }
+                case TASK1_SPECULATIVE:
+                    DownloadTask1.speculative(url).start(saveTo.toString());
+                    break;
+                case TASK2:
+                    new DownloadTask2(url).start(saveTo.toString());
+                    break;
+                case TASK3:
+                    new DownloadTask3(url).start(saveTo.toString());
+                    break;
+                case ASYNC: {
+                    AsyncDownloadEngine engine = new AsyncDownloadEngine(4, 4, 16, 8);
+                    try {
+                        engine.download(url, saveTo.toString()).getFuture().get();
+                    } finally {
+                        engine.close();
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        Path csv = Paths.get(args.length > 1 ? args[1] : "target/network-matrix.csv");
+        int timeoutSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 120;
+
+        StrategyBenchmark.quietLogging();
+        MOCK_SERVER_LOGGER.setLevel(java.util.logging.Level.WARNING);
+        byte[] content = RangeDispatcher.randomContent(sizeMb * 1024 * 1024);
+        Path saveTo = Files.createTempDirectory("netharness");
+        // 超时的下载没法强制结束，放在守护线程里不管它，接着跑下一个
+        ExecutorService runner = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "harness-run");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (csv.getParent() != null) {
+            Files.createDirectories(csv.getParent());
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv, StandardCharsets.UTF_8))) {
+            out.println("strategy,profile,bytes,millis,mbPerSecond,peakHeapMb,result");
+            for (Profile profile : Profile.values()) {
+                RangeDispatcher dispatcher = profile.apply(new RangeDispatcher(content));
+                try (MockWebServer server = new MockWebServer()) {
+                    server.setDispatcher(dispatcher);
+                    server.start();
+                    for (Strategy strategy : Strategy.values()) {
+                        // 每次用不同的文件名，超时还没结束的下载不会和后面的下载写同一个文件
+                        String fileName = (strategy + "-" + profile + ".bin").toLowerCase(Locale.ROOT);
+                        String url = server.url("/" + fileName).toString();
+                        String line = run(runner, strategy, url, saveTo.resolve(fileName), content, timeoutSeconds);
+                        out.println(strategy + "," + profile + "," + line);
+                        out.flush();
+                        System.out.println(String.format("%-18s %-12s %s", strategy, profile, line));
+                    }
+                }
+            }
+        } finally {
+            runner.shutdownNow();
+            try (Stream<Path> files = Files.list(saveTo)) {
+                files.forEach(path -> path.toFile().delete());
+            }
+            Files.deleteIfExists(saveTo);
+        }
+        System.out.println("结果已写入：" + csv.toAbsolutePath());
+    }
+
+    /**
+     * 跑一次下载，下载过程中每20ms采样一次堆内存
+     *
+     * @return CSV里除了方案和网络情况以外的几列
+     */
+    private static String run(ExecutorService runner, Strategy strategy, String url, Path target, byte[] content, int timeoutSeconds) throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        AtomicLong peakHeap = new AtomicLong(memory.getHeapMemoryUsage().getUsed());
+        Future<?> sampler = runner.submit(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        long start = System.nanoTime();
+        String result;
+        try {
+            runner.submit(() -> {
+                strategy.download(url, target.getParent());
+                return null;
+            }).get(timeoutSeconds, TimeUnit.SECONDS);
+            result = Files.exists(target) && Arrays.equals(content, Files.readAllBytes(target)) ? "ok" : "corrupt";
+        } catch (TimeoutException e) {
+            result = "timeout";
+        } catch (Exception e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            result = "error:" + cause.getClass().getSimpleName();
+        } finally {
+            sampler.cancel(true);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        try {
+            Files.deleteIfExists(target);
+        } catch (IOException e) {
+            // 超时的下载可能还在写，删不掉就留到最后一起删
+        }
+        double mbPerSecond = content.length / 1024.0 / 1024.0 / Math.max(1, millis) * 1000;
+        return content.length + "," + millis + "," + String.format(Locale.ROOT, "%.2f", mbPerSecond) + ","
+                + String.format(Locale.ROOT, "%.1f", peakHeap.get() / 1024.0 / 1024.0) + "," + result;
+    }
+}
@@ -0,0 +1,97 @@
+package org.nbpeak.net.download.demo;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 按文件顺序算摘要：数据乱序、多线程交过来时，从文件读回缺的部分，结果和整体算的一样
+ */
+public class OrderedDigestTest {
+    private static final int CHUNK = 64 * 1024;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void quietLogging() {
+        StrategyBenchmark.quietLogging();
+    }
+
+    private static byte[] sha256(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    @Test
+    public void outOfOrderChunksFromManyThreads() throws Exception {
+        byte[] data = RangeDispatcher.randomContent(4 * 1024 * 1024 + 123);
+        Path path = folder.newFile().toPath();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            OrderedDigest digest = new OrderedDigest(ExpectedDigest.of("SHA-256", "00"));
+            digest.setReadBack(channel);
+            List<Integer> offsets = new ArrayList<>();
+            for (int pos = 0; pos < data.length; pos += CHUNK) {
+                offsets.add(pos);
+            }
+            Collections.shuffle(offsets, new Random(11));
+            List<Future<?>> futures = new ArrayList<>();
+            for (int pos : offsets) {
+                futures.add(pool.submit(() -> {
+                    // 先写文件再交给摘要，和磁盘线程池里的写任务一样
+                    ByteBuffer chunk = ByteBuffer.wrap(data, pos, Math.min(CHUNK, data.length - pos));
+                    channel.write(chunk.duplicate(), pos);
+                    digest.update(pos, chunk);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertArrayEquals(sha256(data), digest.finish(data.length));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void previouslyWrittenRangesAreReadBack() throws Exception {
+        byte[] data = RangeDispatcher.randomContent(300_000);
+        Path path = folder.newFile().toPath();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            channel.write(ByteBuffer.wrap(data), 0);
+            OrderedDigest digest = new OrderedDigest(ExpectedDigest.of("SHA-256", "00"));
+            digest.setReadBack(channel);
+            // 断点续传时以前下载好的部分
+            digest.addWritten(0, 99_999);
+            digest.update(200_000, data, 200_000, 100_000);
+            digest.update(100_000, data, 100_000, 100_000);
+            assertArrayEquals(sha256(data), digest.finish(data.length));
+        }
+    }
+
+    @Test
+    public void gapMeansNoDigest() throws Exception {
+        byte[] data = RangeDispatcher.randomContent(1000);
+        OrderedDigest digest = new OrderedDigest(ExpectedDigest.of("SHA-256", "00"));
+        digest.update(0, data, 0, 400);
+        digest.update(600, data, 600, 400);
+        assertNull(digest.finish(data.length));
+    }
+}
@@ -0,0 +1,130 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.nbpeak.net.download.demo.pojo.DownloadInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分块校验：清单能写出再读回，坏块只报告坏的范围，下载时出错的块会被重新下载
+ */
+public class PieceVerifierTest {
+    private static final int PIECE = 1000;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void quietLogging() {
+        StrategyBenchmark.quietLogging();
+    }
+
+    private Path writeFile(byte[] content) throws Exception {
+        Path path = folder.newFile().toPath();
+        Files.write(path, content);
+        return path;
+    }
+
+    @Test
+    public void textAndMetalinkManifestsAgree() throws Exception {
+        byte[] content = RangeDispatcher.randomContent(10 * PIECE + 1);
+        PieceManifest manifest = PieceManifest.create(writeFile(content), "sha-256", PIECE);
+        assertEquals(11, manifest.getPieceCount());
+        assertTrue(manifest.matches(content.length));
+        assertFalse(manifest.matches(content.length + PIECE));
+
+        Path text = folder.newFile("pieces.txt").toPath();
+        manifest.write(text);
+        PieceManifest fromText = PieceManifest.load(text);
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?><metalink xmlns=\"urn:ietf:params:xml:ns:metalink\">"
+                + "<file name=\"f.bin\"><pieces length=\"" + PIECE + "\" type=\"sha-256\">");
+        for (int i = 0; i < manifest.getPieceCount(); i++) {
+            xml.append("<hash>").append(ExpectedDigest.toHex(manifest.getHash(i))).append("</hash>");
+        }
+        xml.append("</pieces></file></metalink>");
+        Path metalink = folder.newFile("f.meta4").toPath();
+        Files.write(metalink, xml.toString().getBytes(StandardCharsets.UTF_8));
+        PieceManifest fromMetalink = PieceManifest.load(metalink);
+
+        for (PieceManifest loaded : new PieceManifest[]{fromText, fromMetalink}) {
+            assertEquals(manifest.getAlgorithm(), loaded.getAlgorithm());
+            assertEquals(PIECE, loaded.getPieceLength());
+            assertEquals(manifest.getPieceCount(), loaded.getPieceCount());
+            for (int i = 0; i < manifest.getPieceCount(); i++) {
+                assertArrayEquals(manifest.getHash(i), loaded.getHash(i));
+            }
+        }
+    }
+
+    @Test
+    public void reportsOnlyBadPieces() throws Exception {
+        byte[] content = RangeDispatcher.randomContent(10 * PIECE + 1);
+        PieceManifest manifest = PieceManifest.create(writeFile(content), "sha-256", PIECE);
+        byte[] damaged = content.clone();
+        damaged[3 * PIECE + 5] ^= 1;
+        damaged[4 * PIECE] ^= 1;
+        damaged[8 * PIECE + 999] ^= 1;
+        Path path = writeFile(damaged);
+
+        PieceVerifier verifier = new PieceVerifier(manifest, content.length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            verifier.setFile(channel);
+            // 写入的段和块不对齐，块要等数据到齐才校验
+            for (int pos = 0; pos < content.length; pos += 700) {
+                verifier.onWritten(pos, Math.min(content.length, pos + 700) - 1);
+            }
+            assertEquals(8, verifier.getPassedCount());
+            assertFalse(verifier.isAllPassed());
+
+            List<long[]> bad = verifier.takeBadRanges();
+            assertEquals("相邻的坏块合并成一个范围", 2, bad.size());
+            assertArrayEquals(new long[]{3 * PIECE, 5 * PIECE - 1}, bad.get(0));
+            assertArrayEquals(new long[]{8 * PIECE, 9 * PIECE - 1}, bad.get(1));
+            assertTrue(verifier.takeBadRanges().isEmpty());
+
+            // 重新下载坏的范围后再次校验
+            for (long[] range : bad) {
+                int start = (int) range[0], length = (int) (range[1] - range[0] + 1);
+                channel.write(ByteBuffer.wrap(content, start, length), start);
+                verifier.onWritten(range[0], range[1]);
+            }
+            assertTrue(verifier.isAllPassed());
+        }
+    }
+
+    @Test
+    public void corruptedPiecesAreRefetched() throws Exception {
+        byte[] content = RangeDispatcher.randomContent(6 * 1024 * 1024 + 123);
+        PieceManifest manifest = PieceManifest.create(writeFile(content), "sha-256", 256 * 1024);
+        for (int mode = 0; mode < 2; mode++) {
+            MockWebServer server = new MockWebServer();
+            server.setDispatcher(new RangeDispatcher(content).corrupts(0.3));
+            try {
+                DownloadTask1 task = new DownloadTask1(server.url("/f/pieces.bin").toString());
+                task.setPieceManifest(manifest);
+                task.setWorkStealing(mode == 1);
+                Path dir = folder.newFolder().toPath();
+                task.start(dir.toString());
+                assertEquals("模式" + mode, DownloadInfo.Status.FINISHED, task.getDownloadInfo().getStatus());
+                assertArrayEquals(content, Files.readAllBytes(dir.resolve("pieces.bin")));
+            } finally {
+                server.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * MockWebServer的分段下载服务端：任何路径都返回同一份内容，支持HEAD、Range和If-Range，
+ * 可以限制每个响应的速度来模拟单连接带宽，也可以模拟卡顿、传到一半断开、数据出错、不支持Range、分块传输、文件被替换等情况
+ */
+public class RangeDispatcher extends Dispatcher {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final byte[] content;
+    // 文件被替换后换成新的ETag，带旧ETag的If-Range不再匹配
+    private volatile String eTag;
+    // 每个响应每periodMillis毫秒最多发bytesPerPeriod字节，为0时不限速
+    private long bytesPerPeriod;
+    private long periodMillis;
+    // 每个响应的响应头延迟，模拟往返时间
+    private long headersDelayMillis;
+    // 按概率让响应在发完响应头后卡住一段时间
+    private double stallProbability;
+    private long stallMillis;
+    // 按概率让响应体发到一半时断开连接
+    private double disconnectProbability;
+    // 按概率改掉响应体里的一个字节
+    private double corruptProbability;
+    // 不支持Range：不返回Accept-Ranges，忽略Range头
+    private boolean rangesDisabled;
+    // 分块传输：不返回Content-Length，响应体用chunked编码，同时也不支持Range
+    private boolean chunked;
+    // 固定种子，每次运行注入故障的概率分布一样
+    private final Random random = new Random(42);
+
+    public RangeDispatcher(byte[] content) {
+        this.content = content;
+        this.eTag = "\"" + Integer.toHexString(content.length) + "\"";
+    }
+
+    /**
+     * 生成指定大小的随机内容
+     *
+     * @param size
+     * @return
+     */
+    public static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * 限制每个响应的速度
+     *
+     * @param bytesPerPeriod
+     * @param periodMillis
+     * @return
+     */
+    public RangeDispatcher throttle(long bytesPerPeriod, long periodMillis) {
+        this.bytesPerPeriod = bytesPerPeriod;
+        this.periodMillis = periodMillis;
+        return this;
+    }
+
+    /**
+     * 每个响应延迟发送响应头
+     *
+     * @param millis
+     * @return
+     */
+    public RangeDispatcher delay(long millis) {
+        this.headersDelayMillis = millis;
+        return this;
+    }
+
+    /**
+     * 按概率让响应在发完响应头后卡住一段时间
+     *
+     * @param probability
+     * @param millis
+     * @return
+     */
+    public RangeDispatcher stalls(double probability, long millis) {
+        this.stallProbability = probability;
+        this.stallMillis = millis;
+        return this;
+    }
+
+    /**
+     * 按概率让响应体发到一半时断开连接
+     *
+     * @param probability
+     * @return
+     */
+    public RangeDispatcher disconnects(double probability) {
+        this.disconnectProbability = probability;
+        return this;
+    }
+
+    /**
+     * 按概率改掉响应体里的一个字节，模拟传输中出错而TCP校验没发现的情况
+     *
+     * @param probability
+     * @return
+     */
+    public RangeDispatcher corrupts(double probability) {
+        this.corruptProbability = probability;
+        return this;
+    }
+
+    /**
+     * 模拟不支持Range的服务器：不返回Accept-Ranges，分段请求也返回整个文件
+     *
+     * @return
+     */
+    public RangeDispatcher noRanges() {
+        this.rangesDisabled = true;
+        return this;
+    }
+
+    /**
+     * 模拟边生成边发送的服务器：不返回Content-Length，用chunked编码，不支持Range
+     *
+     * @return
+     */
+    public RangeDispatcher chunked() {
+        this.chunked = true;
+        this.rangesDisabled = true;
+        return this;
+    }
+
+    /**
+     * 模拟服务器上的文件被替换：之后的响应带新的ETag，带旧ETag的If-Range分段请求会返回200和整个文件
+     *
+     * @param eTag 新的ETag
+     * @return
+     */
+    public RangeDispatcher changeETag(String eTag) {
+        this.eTag = eTag;
+        return this;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+        String eTag = this.eTag;
+        MockResponse response = new MockResponse()
+                .setHeader("ETag", eTag);
+        if (!rangesDisabled) {
+            response.setHeader("Accept-Ranges", "bytes");
+        }
+        if ("HEAD".equals(request.getMethod())) {
+            if (chunked) {
+                return response.setHeader("Transfer-Encoding", "chunked");
+            }
+            return response.setHeader("Content-Length", content.length);
+        }
+        int start = 0, end = content.length - 1;
+        String range = rangesDisabled ? null : request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        Matcher matcher = range == null ? null : RANGE.matcher(range);
+        if (matcher != null && matcher.matches() && (ifRange == null || ifRange.equals(eTag))) {
+            start = Integer.parseInt(matcher.group(1));
+            if (!matcher.group(2).isEmpty()) {
+                end = Math.min(end, Integer.parseInt(matcher.group(2)));
+            }
+            response.setResponseCode(206)
+                    .setHeader("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        }
+        Buffer body = new Buffer().write(content, start, end - start + 1);
+        if (corruptProbability > 0 && random.nextDouble() < corruptProbability) {
+            byte[] bytes = body.readByteArray();
+            bytes[random.nextInt(bytes.length)] ^= 0x55;
+            body.write(bytes);
+        }
+        if (chunked) {
+            response.setChunkedBody(body, 16 * 1024);
+        } else {
+            response.setBody(body);
+        }
+        if (stallProbability > 0 && random.nextDouble() < stallProbability) {
+            response.setBodyDelay(stallMillis, TimeUnit.MILLISECONDS);
+        }
+        if (disconnectProbability > 0 && random.nextDouble() < disconnectProbability) {
+            response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+        }
+        if (headersDelayMillis > 0) {
+            response.setHeadersDelay(headersDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        if (bytesPerPeriod > 0) {
+            response.throttleBody(bytesPerPeriod, periodMillis, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,131 @@
+package org.nbpeak.net.download.demo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 已完成范围的索引：合并重叠和相邻的区间，查询缺失的范围，序列化后能原样读回
+ */
+public class RangeIndexTest {
+
+    @Test
+    public void mergesOverlappingAndAdjacentRanges() {
+        RangeIndex index = new RangeIndex();
+        index.add(10, 19);
+        index.add(30, 39);
+        index.add(20, 29);
+        assertEquals("相邻的区间合并成一个", 1, index.getRangeCount());
+        assertEquals(30, index.getCoveredSize());
+
+        index.add(50, 59);
+        index.add(5, 55);
+        assertEquals(1, index.getRangeCount());
+        assertArrayEquals(new long[]{5, 59}, index.ranges().get(0));
+        assertEquals(55, index.getCoveredSize());
+
+        // 已经包含的范围不重复计算
+        index.add(20, 30);
+        assertEquals(55, index.getCoveredSize());
+        index.add(9, 8);
+        assertEquals(55, index.getCoveredSize());
+    }
+
+    @Test
+    public void containsAndCovers() {
+        RangeIndex index = new RangeIndex();
+        index.add(100, 199);
+        index.add(300, 399);
+        assertFalse(index.contains(99));
+        assertTrue(index.contains(100));
+        assertTrue(index.contains(199));
+        assertFalse(index.contains(200));
+        assertTrue(index.covers(120, 180));
+        assertFalse(index.covers(150, 350));
+        assertFalse(index.covers(0, 10));
+    }
+
+    @Test
+    public void nextMissing() {
+        RangeIndex index = new RangeIndex();
+        index.add(0, 99);
+        index.add(200, 299);
+        assertArrayEquals(new long[]{100, 199}, index.nextMissing(0, 1000));
+        assertArrayEquals(new long[]{150, 199}, index.nextMissing(150, 1000));
+        assertArrayEquals(new long[]{300, 999}, index.nextMissing(250, 1000));
+        assertArrayEquals("缺失的范围不超过limit", new long[]{100, 149}, index.nextMissing(0, 150));
+        assertNull(index.nextMissing(50, 100));
+    }
+
+    @Test
+    public void missingListsEveryGap() {
+        RangeIndex index = new RangeIndex();
+        index.add(10, 19);
+        index.add(40, 49);
+        List<long[]> missing = index.missing(60);
+        assertEquals(3, missing.size());
+        assertArrayEquals(new long[]{0, 9}, missing.get(0));
+        assertArrayEquals(new long[]{20, 39}, missing.get(1));
+        assertArrayEquals(new long[]{50, 59}, missing.get(2));
+
+        index.add(0, 59);
+        assertTrue(index.missing(60).isEmpty());
+    }
+
+    @Test
+    public void matchesBitmapForRandomAdds() {
+        int size = 5000;
+        boolean[] bitmap = new boolean[size];
+        RangeIndex index = new RangeIndex(4);
+        Random random = new Random(7);
+        for (int n = 0; n < 2000; n++) {
+            int start = random.nextInt(size);
+            int end = Math.min(size - 1, start + random.nextInt(40));
+            index.add(start, end);
+            for (int i = start; i <= end; i++) {
+                bitmap[i] = true;
+            }
+        }
+        long covered = 0;
+        for (int i = 0; i < size; i++) {
+            assertEquals("位置" + i, bitmap[i], index.contains(i));
+            covered += bitmap[i] ? 1 : 0;
+        }
+        assertEquals(covered, index.getCoveredSize());
+        for (long[] gap : index.missing(size)) {
+            for (long i = gap[0]; i <= gap[1]; i++) {
+                assertFalse(bitmap[(int) i]);
+            }
+            assertTrue(gap[1] == size - 1 || bitmap[(int) gap[1] + 1]);
+        }
+    }
+
+    @Test
+    public void serializationRoundTrip() throws Exception {
+        RangeIndex index = new RangeIndex();
+        index.add(0, 0);
+        index.add(1000, 1999);
+        index.add(5L << 40, (5L << 40) + 12345);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.writeTo(new DataOutputStream(bytes));
+
+        RangeIndex copy = new RangeIndex();
+        copy.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(index.getRangeCount(), copy.getRangeCount());
+        assertEquals(index.getCoveredSize(), copy.getCoveredSize());
+        for (int i = 0; i < index.getRangeCount(); i++) {
+            assertArrayEquals(index.ranges().get(i), copy.ranges().get(i));
+        }
+    }
+}
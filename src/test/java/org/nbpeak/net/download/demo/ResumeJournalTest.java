@@ -0,0 +1,132 @@
+package org.nbpeak.net.download.demo;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 断点记录：重新打开时恢复已完成的范围，服务器上的文件变了或者目标文件没了就重新开始
+ */
+public class ResumeJournalTest {
+    private static final long SIZE = 1000;
+    private static final String ETAG = "\"abc\"";
+    private static final String LAST_MODIFIED = "Sun, 18 Oct 2026 00:00:00 GMT";
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private Path target;
+    private Path journalPath;
+
+    @BeforeClass
+    public static void quietLogging() {
+        StrategyBenchmark.quietLogging();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        target = folder.newFile("file.bin").toPath();
+        journalPath = target.resolveSibling("file.bin.dtj");
+    }
+
+    private ResumeJournal open() throws Exception {
+        return ResumeJournal.open(target, SIZE, ETAG, LAST_MODIFIED);
+    }
+
+    @Test
+    public void reloadsAppendedRecords() throws Exception {
+        try (ResumeJournal journal = open()) {
+            journal.record(0, 99);
+            journal.record(200, 299);
+            journal.record(100, 149);
+            // 不压缩直接关闭，相当于进程崩溃
+        }
+        try (ResumeJournal journal = open()) {
+            assertEquals(250, journal.getCompletedSize());
+            List<long[]> missing = journal.getMissing();
+            assertEquals(2, missing.size());
+            assertArrayEquals(new long[]{150, 199}, missing.get(0));
+            assertArrayEquals(new long[]{300, SIZE - 1}, missing.get(1));
+        }
+    }
+
+    @Test
+    public void reloadsCompactedSnapshot() throws Exception {
+        ResumeJournal journal = open();
+        journal.record(0, 499);
+        journal.record(600, 999);
+        journal.compact();
+
+        ResumeJournal reloaded = open();
+        assertEquals(900, reloaded.getCompletedSize());
+        assertEquals(2, reloaded.getIndex().getRangeCount());
+        reloaded.record(500, 599);
+        assertTrue(reloaded.isComplete());
+        reloaded.close();
+    }
+
+    @Test
+    public void ignoresTornLastRecord() throws Exception {
+        try (ResumeJournal journal = open()) {
+            journal.record(0, 99);
+        }
+        // 最后一条记录只写了一半
+        Files.write(journalPath, new byte[]{0, 0, 0, 0, 0, 0, 0, 1, 0, 0}, StandardOpenOption.APPEND);
+        try (ResumeJournal journal = open()) {
+            assertEquals(100, journal.getCompletedSize());
+        }
+    }
+
+    @Test
+    public void discardedWhenServerFileChanged() throws Exception {
+        try (ResumeJournal journal = open()) {
+            journal.record(0, 99);
+        }
+        try (ResumeJournal journal = ResumeJournal.open(target, SIZE, "\"other\"", LAST_MODIFIED)) {
+            assertEquals(0, journal.getCompletedSize());
+        }
+        try (ResumeJournal journal = open()) {
+            assertEquals("旧记录已经被新的校验信息覆盖", 0, journal.getCompletedSize());
+        }
+    }
+
+    @Test
+    public void discardedWhenSizeChanged() throws Exception {
+        try (ResumeJournal journal = open()) {
+            journal.record(0, 99);
+        }
+        try (ResumeJournal journal = ResumeJournal.open(target, SIZE + 1, ETAG, LAST_MODIFIED)) {
+            assertEquals(0, journal.getCompletedSize());
+        }
+    }
+
+    @Test
+    public void discardedWhenTargetMissing() throws Exception {
+        try (ResumeJournal journal = open()) {
+            journal.record(0, 99);
+        }
+        Files.delete(target);
+        try (ResumeJournal journal = open()) {
+            assertEquals(0, journal.getCompletedSize());
+        }
+    }
+
+    @Test
+    public void deleteRemovesJournal() throws Exception {
+        ResumeJournal journal = open();
+        journal.record(0, SIZE - 1);
+        assertTrue(journal.isComplete());
+        journal.delete();
+        assertFalse(Files.exists(journalPath));
+    }
+}
@@ -0,0 +1,110 @@
+package org.nbpeak.net.download.demo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分段调度：切分剩余最多的分段、认领不越过新的结尾、出错时从没写好的位置还回去
+ */
+public class SegmentSchedulerTest {
+
+    @Test
+    public void pendingSegmentsComeFirst() {
+        SegmentScheduler scheduler = new SegmentScheduler(10);
+        scheduler.add(0, 99);
+        scheduler.add(100, 199);
+        assertEquals(0, scheduler.next().getStartPos());
+        assertEquals(100, scheduler.next().getStartPos());
+        assertTrue(scheduler.hasRemaining());
+    }
+
+    @Test
+    public void stealSplitsLargestRemainder() {
+        SegmentScheduler scheduler = new SegmentScheduler(10);
+        scheduler.add(0, 99);
+        scheduler.add(100, 139);
+        SegmentScheduler.Segment big = scheduler.next();
+        SegmentScheduler.Segment small = scheduler.next();
+        assertEquals(20, big.claim(20));
+
+        // 大分段还剩20-99，从中点60切开
+        SegmentScheduler.Segment stolen = scheduler.next();
+        assertEquals(60, stolen.getStartPos());
+        assertEquals(99, stolen.getEndPos());
+        assertEquals(59, big.getEndPos());
+        assertEquals(139, small.getEndPos());
+    }
+
+    @Test
+    public void claimStopsAtNewEnd() {
+        SegmentScheduler scheduler = new SegmentScheduler(10);
+        scheduler.add(0, 99);
+        SegmentScheduler.Segment segment = scheduler.next();
+        assertEquals(40, segment.claim(40));
+        segment.commit(40);
+        SegmentScheduler.Segment stolen = scheduler.next();
+        assertEquals(70, stolen.getStartPos());
+
+        // 切分后只剩40-69，读到的字节超出部分不能写
+        assertEquals(30, segment.claim(50));
+        segment.commit(30);
+        assertEquals(0, segment.claim(10));
+        assertTrue(segment.isFinished());
+    }
+
+    @Test
+    public void splitDoesNotCutClaimedBytes() {
+        SegmentScheduler scheduler = new SegmentScheduler(10);
+        scheduler.add(0, 99);
+        SegmentScheduler.Segment segment = scheduler.next();
+        // 认领了但还没写完，切分要从认领的位置往后算
+        assertEquals(60, segment.claim(60));
+        assertEquals(0, segment.getCurrent());
+        SegmentScheduler.Segment stolen = scheduler.next();
+        assertEquals(80, stolen.getStartPos());
+        assertEquals(79, segment.getEndPos());
+    }
+
+    @Test
+    public void tooSmallToSplit() {
+        SegmentScheduler scheduler = new SegmentScheduler(10);
+        scheduler.add(0, 29);
+        SegmentScheduler.Segment segment = scheduler.next();
+        segment.claim(15);
+        assertNull(scheduler.next());
+        assertTrue(scheduler.hasRemaining());
+    }
+
+    @Test
+    public void giveBackRequeuesFromWrittenPosition() {
+        SegmentScheduler scheduler = new SegmentScheduler(10);
+        scheduler.add(0, 99);
+        SegmentScheduler.Segment segment = scheduler.next();
+        segment.claim(30);
+        segment.commit(30);
+        // 又认领了20字节，写文件出错，没有commit
+        segment.claim(20);
+        scheduler.giveBack(segment);
+
+        SegmentScheduler.Segment retry = scheduler.next();
+        assertEquals(30, retry.getStartPos());
+        assertEquals(99, retry.getEndPos());
+        assertEquals(30, retry.getCurrent());
+    }
+
+    @Test
+    public void finishedSegmentsLeaveNothingRemaining() {
+        SegmentScheduler scheduler = new SegmentScheduler(10);
+        scheduler.add(0, 49);
+        SegmentScheduler.Segment segment = scheduler.next();
+        segment.commit(segment.claim(50));
+        assertFalse(scheduler.hasRemaining());
+        scheduler.finish(segment);
+        assertNull(scheduler.next());
+        assertFalse(scheduler.hasRemaining());
+    }
+}
@@ -0,0 +1,80 @@
+package org.nbpeak.net.download.demo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 自适应分段：分段首尾相接覆盖整个文件，大小按带宽时延积增长、出错时减半、收尾时按连接数平分
+ */
+public class SegmentSizerTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void segmentsCoverWholeFile() {
+        long fileSize = 10_000_123;
+        SegmentSizer sizer = new SegmentSizer(fileSize, 3, 2 * MB);
+        long expectedStart = 0;
+        long[] range;
+        while ((range = sizer.next()) != null) {
+            assertEquals(expectedStart, range[0]);
+            assertTrue(range[1] >= range[0]);
+            expectedStart = range[1] + 1;
+            // 每个分段都报告一次，分段大小跟着变
+            sizer.report(range[1] - range[0] + 1, 50, 150);
+        }
+        assertEquals(fileSize, expectedStart);
+        assertNull(sizer.next());
+    }
+
+    @Test
+    public void initialSizeFitsEveryConnection() {
+        // 文件只够每个连接分2.5MB，初始大小不能比这个大
+        assertEquals(10 * MB / 4, new SegmentSizer(10 * MB, 4, 4 * MB).getSegmentSize());
+        // 再小也不能小于最小分段
+        assertEquals(SegmentSizer.MIN_SIZE, new SegmentSizer(MB, 8, 2 * MB).getSegmentSize());
+    }
+
+    @Test
+    public void tailIsSharedAcrossConnections() {
+        SegmentSizer sizer = new SegmentSizer(10 * MB, 4, 4 * MB);
+        assertArrayEquals(new long[]{0, 10 * MB / 4 - 1}, sizer.next());
+        // 剩7.5MB，按4个连接平分，每个分段不再是2.5MB
+        long[] second = sizer.next();
+        assertEquals((long) Math.ceil(7.5 * MB / 4), second[1] - second[0] + 1);
+    }
+
+    @Test
+    public void growsAtMostDoubleTowardsBdp() {
+        SegmentSizer sizer = new SegmentSizer(1024 * MB, 8, MB);
+        // 1MB用了100ms传完，RTT 100ms：带宽约10MB/s，带宽时延积的10倍约10MB，每次最多翻倍
+        sizer.report(MB, 100, 200);
+        assertEquals(2 * MB, sizer.getSegmentSize());
+        sizer.report(2 * MB, 100, 300);
+        assertEquals(4 * MB, sizer.getSegmentSize());
+    }
+
+    @Test
+    public void halvesOnErrorOrSlowdown() {
+        SegmentSizer sizer = new SegmentSizer(1024 * MB, 8, 8 * MB);
+        sizer.report(0, 0, 0);
+        assertEquals(4 * MB, sizer.getSegmentSize());
+
+        sizer.report(4 * MB, 10, 410);
+        long afterFast = sizer.getSegmentSize();
+        // 速度掉到之前的一半以下，分段减半
+        sizer.report(MB, 10, 1010);
+        assertEquals(afterFast / 2, sizer.getSegmentSize());
+    }
+
+    @Test
+    public void neverBelowMinimum() {
+        SegmentSizer sizer = new SegmentSizer(1024 * MB, 8, SegmentSizer.MIN_SIZE);
+        sizer.report(0, 0, 0);
+        sizer.report(0, 0, 0);
+        assertEquals(SegmentSizer.MIN_SIZE, sizer.getSegmentSize());
+    }
+}
@@ -0,0 +1,108 @@
+package org.nbpeak.net.download.demo;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import okhttp3.mockwebserver.MockWebServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 三种下载方案的端到端基准测试：进程内的MockWebServer提供文件，每次调用完整下载一次（HEAD、分段请求、写文件、合并）。
+ * 每个响应可以限速来模拟单连接带宽，默认不限速，测的是本机上各方案自身的开销。运行：
+ * mvn -P benchmark test-compile exec:exec -Djmh.args="StrategyBenchmark"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StrategyBenchmark {
+    @Param({"32"})
+    private int sizeMb;
+    // 每个响应每10ms最多发多少KB，0表示不限速
+    @Param({"0"})
+    private int throttleKb;
+
+    private MockWebServer server;
+    private String url;
+    private Path saveTo;
+
+    /**
+     * 下载过程中每个分段都会打INFO日志，基准测试时只保留警告以上的日志，免得测成了写日志的速度
+     */
+    static void quietLogging() {
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        quietLogging();
+        RangeDispatcher dispatcher = new RangeDispatcher(RangeDispatcher.randomContent(sizeMb * 1024 * 1024));
+        if (throttleKb > 0) {
+            dispatcher.throttle(throttleKb * 1024L, 10);
+        }
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.start();
+        url = server.url("/bench.bin").toString();
+        saveTo = Files.createTempDirectory("strategybench");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        Files.deleteIfExists(saveTo.resolve("bench.bin"));
+        Files.deleteIfExists(saveTo);
+    }
+
+    /**
+     * 方案一：每个线程一个分段，写临时文件，最后合并
+     */
+    @Benchmark
+    public void task1TempFiles() throws IOException, InterruptedException {
+        new DownloadTask1(url).start(saveTo.toString());
+    }
+
+    /**
+     * 方案一的定位写入模式，对比省掉临时文件和合并后的差别
+     */
+    @Benchmark
+    public void task1Positional() throws IOException, InterruptedException {
+        DownloadTask1 task = new DownloadTask1(url);
+        task.setPositionalWrite(true);
+        task.start(saveTo.toString());
+    }
+
+    /**
+     * 方案二：固定大小的分段，按线程追加到临时文件，最后合并
+     */
+    @Benchmark
+    public void task2AppendFiles() throws IOException, InterruptedException {
+        new DownloadTask2(url).start(saveTo.toString());
+    }
+
+    /**
+     * 方案三：下载线程把数据读到缓存，每块缓存交给磁盘线程池写到文件
+     */
+    @Benchmark
+    public void task3DiskPool() throws IOException {
+        new DownloadTask3(url).start(saveTo.toString());
+    }
+}
@@ -0,0 +1,65 @@
+package org.nbpeak.net.download.demo;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * 普通线程和虚拟线程的对比：同一个文件分成8、64、512个分段，每个分段一个下载线程（DownloadTask1的定位写入模式）。
+ * 服务端每个响应延迟发送响应头并限速，模拟远程服务器。虚拟线程要在JDK 21及以上运行，旧版本JDK只跑普通线程。手动运行：
+ * VirtualThreadBenchmark [文件大小MB，默认32] [响应头延迟ms，默认50] [每个响应每10ms发多少KB，默认64]
+ */
+public class VirtualThreadBenchmark {
+    private static final int[] SEGMENTS = {8, 64, 512};
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int delayMillis = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int throttleKb = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        RangeDispatcher dispatcher = new RangeDispatcher(RangeDispatcher.randomContent(sizeMb * 1024 * 1024))
+                .delay(delayMillis)
+                .throttle(throttleKb * 1024L, 10);
+        HttpClientFactory.ensureCapacity(SEGMENTS[SEGMENTS.length - 1]);
+        Path saveTo = Files.createTempDirectory("vtbench");
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(dispatcher);
+            server.start();
+            String url = server.url("/bench.bin").toString();
+            System.out.println("文件 " + sizeMb + "MB，响应头延迟 " + delayMillis + "ms，每个连接限速 " + throttleKb + "KB/10ms，"
+                    + "虚拟线程：" + (VirtualThreads.isSupported() ? "支持" : "不支持"));
+            for (int segments : SEGMENTS) {
+                run(url, dispatcher, saveTo, segments, false);
+                if (VirtualThreads.isSupported()) {
+                    run(url, dispatcher, saveTo, segments, true);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(saveTo.resolve("bench.bin"));
+            Files.deleteIfExists(saveTo);
+        }
+    }
+
+    private static void run(String url, RangeDispatcher dispatcher, Path saveTo, int segments, boolean virtual) throws IOException, InterruptedException {
+        Path target = saveTo.resolve("bench.bin");
+        Files.deleteIfExists(target);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        DownloadTask1 task = new DownloadTask1(url);
+        task.setPositionalWrite(true);
+        task.setThreadCount(segments);
+        task.setVirtualThreads(virtual);
+        // 峰值只统计平台线程，虚拟线程不算在内；MockWebServer每个连接也占一个平台线程，两种模式都算在里面
+        threadMXBean.resetPeakThreadCount();
+        long start = System.nanoTime();
+        task.start(saveTo.toString());
+        long millis = (System.nanoTime() - start) / 1000000;
+        boolean ok = Arrays.equals(dispatcher.getContent(), Files.readAllBytes(target));
+        System.out.println(String.format("%4d个分段 %-4s 耗时 %6d ms，平台线程峰值 %4d，内容%s",
+                segments, virtual ? "虚拟线程" : "普通线程", millis, threadMXBean.getPeakThreadCount(), ok ? "正确" : "错误"));
+    }
+}